@@ -0,0 +1,85 @@
+package ai2018.common;
+
+import java.util.List;
+
+import genius.core.bidding.BidDetails;
+import genius.core.boaframework.OpponentModel;
+
+/**
+ * Opponent model that can evaluate many encoded bids in one call. <br><br>
+ *
+ * Opponent model strategies score a whole candidate window through
+ * {@link #evaluateAll(OpponentModel, List, double[])}, which uses the batch
+ * entry point of models extending this class, and falls back to one
+ * {@link OpponentModel#getBidEvaluation(genius.core.Bid)} call per bid for
+ * any other model.
+ *
+ * @author Group 9
+ */
+public abstract class BatchOpponentModel extends OpponentModel {
+
+	/**
+	 * Evaluates the bids with the given mixed-radix codes. Subclasses should
+	 * override this with a primitive loop, the default decodes every bid.
+	 *
+	 * @param codec
+	 *            codec the codes were made with
+	 * @param codes
+	 *            mixed-radix indices of the bids
+	 * @param from
+	 *            first position to evaluate
+	 * @param to
+	 *            position after the last one to evaluate
+	 * @param out
+	 *            receives the evaluation of codes[i] at out[i - from]
+	 */
+	public void evaluateAll(BidCodec codec, long[] codes, int from, int to, double[] out) {
+		for (int i = from; i < to; i++) {
+			out[i - from] = getBidEvaluation(codec.toBid(codes[i]));
+		}
+	}
+
+	/**
+	 * Prepares the model for calls to
+	 * {@link #evaluateAll(BidCodec, long[], int, int, double[])} from several
+	 * threads at once, which must not change the model until it is updated
+	 * again. By default this is not supported.
+	 *
+	 * @return true if the model may be evaluated concurrently
+	 */
+	public boolean prepareConcurrentEvaluation() {
+		return false;
+	}
+
+	/**
+	 * Evaluates a list of candidate bids with any opponent model, in one
+	 * batch call if the model supports it and the list is a window of a
+	 * {@link UtilityBucketIndex}
+	 *
+	 * @param model
+	 * @param bids
+	 * @param out
+	 *            receives the evaluation of bids.get(i) at out[i]
+	 */
+	public static void evaluateAll(OpponentModel model, List<BidDetails> bids, double[] out) {
+		if (model instanceof BatchOpponentModel && bids instanceof UtilityBucketIndex.Window) {
+			UtilityBucketIndex.Window window = (UtilityBucketIndex.Window) bids;
+			UtilityBucketIndex index = window.getIndex();
+			if (index.hasCodes()) {
+				((BatchOpponentModel) model).evaluateAll(index.getCodec(), index.getCodes(),
+						window.getFrom(), window.getTo(), out);
+				// the window lists the bids from the last position down
+				for (int i = 0, j = bids.size() - 1; i < j; i++, j--) {
+					double evaluation = out[i];
+					out[i] = out[j];
+					out[j] = evaluation;
+				}
+				return;
+			}
+		}
+
+		for (int i = 0; i < bids.size(); i++) {
+			out[i] = model.getBidEvaluation(bids.get(i).getBid());
+		}
+	}
+}
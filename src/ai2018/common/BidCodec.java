@@ -0,0 +1,384 @@
+package ai2018.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import genius.core.Bid;
+import genius.core.Domain;
+import genius.core.issue.Issue;
+import genius.core.issue.IssueDiscrete;
+import genius.core.issue.Value;
+import genius.core.issue.ValueDiscrete;
+
+/**
+ * Maps bids of a discrete domain to primitive codes and back. <br><br>
+ *
+ * A bid is encoded as an <code>int[]</code> holding, for each issue in
+ * {@link Domain#getIssues()} order, the ordinal of its value. If the outcome
+ * space fits, the ordinals are also packed into a single <code>long</code>
+ * mixed-radix index, where the first issue is the least significant digit.
+ * <br><br>
+ *
+ * Codecs are immutable, so one instance is shared per domain through
+ * {@link #forDomain(Domain)}.
+ *
+ * @author Group 9
+ */
+public class BidCodec {
+
+	/**
+	 * codecs shared by all components negotiating on the same domain. A
+	 * codec refers to its domain, so it is held weakly as well, or the
+	 * domain could never be released.
+	 */
+	private static final Map<Domain, WeakReference<BidCodec>> CODECS
+			= new WeakHashMap<Domain, WeakReference<BidCodec>>();
+
+	private final Domain domain;
+	private final IssueDiscrete[] issues;
+	private final int[] issueNumbers;
+	private final ValueDiscrete[][] values;
+	private final List<Map<Value, Integer>> ordinals;
+
+	/**
+	 * Place value of each issue in the mixed-radix index
+	 */
+	private final long[] places;
+
+	/**
+	 * Number of possible outcomes, or -1 if it does not fit in a long
+	 */
+	private final long size;
+
+	/**
+	 * Largest number of values among all issues
+	 */
+	private final int maxValueCount;
+
+	/**
+	 * Bits per issue when the ordinals are packed into one long, and the mask
+	 * of the lowest bit of every issue, or 0 if they do not fit
+	 */
+	private final int fieldBits;
+	private final long fieldLowBits;
+
+	/**
+	 * Builds the codec of a domain. Prefer {@link #forDomain(Domain)}.
+	 *
+	 * @param domain
+	 *            discrete domain to encode bids of
+	 */
+	public BidCodec(Domain domain) {
+		this.domain = domain;
+
+		List<Issue> domainIssues = domain.getIssues();
+		int noIssues = domainIssues.size();
+		issues = new IssueDiscrete[noIssues];
+		issueNumbers = new int[noIssues];
+		values = new ValueDiscrete[noIssues][];
+		ordinals = new ArrayList<Map<Value, Integer>>(noIssues);
+		places = new long[noIssues];
+
+		long place = 1;
+		int max = 0;
+		for (int k = 0; k < noIssues; k++) {
+			IssueDiscrete issue = (IssueDiscrete) domainIssues.get(k);
+			List<ValueDiscrete> issueValues = issue.getValues();
+
+			issues[k] = issue;
+			issueNumbers[k] = issue.getNumber();
+			values[k] = issueValues.toArray(new ValueDiscrete[issueValues.size()]);
+			Map<Value, Integer> issueOrdinals = new HashMap<Value, Integer>();
+			for (int v = 0; v < values[k].length; v++) {
+				issueOrdinals.put(values[k][v], v);
+			}
+			ordinals.add(issueOrdinals);
+			max = Math.max(max, values[k].length);
+
+			// once the index overflows, keep -1 for the remaining places
+			places[k] = place;
+			if (place > 0) {
+				place = (place > Long.MAX_VALUE / values[k].length) ? -1 : place * values[k].length;
+			}
+		}
+		size = place;
+		maxValueCount = max;
+
+		int bits = 1;
+		while ((1 << bits) < max) {
+			bits++;
+		}
+		long lowBits = 0;
+		if (bits * noIssues <= 64) {
+			for (int k = 0; k < noIssues; k++) {
+				lowBits |= 1L << (k * bits);
+			}
+		}
+		fieldBits = bits;
+		fieldLowBits = lowBits;
+	}
+
+	/**
+	 * Returns the shared codec of a domain
+	 *
+	 * @param domain
+	 * @return BidCodec
+	 */
+	public static BidCodec forDomain(Domain domain) {
+		synchronized (CODECS) {
+			WeakReference<BidCodec> shared = CODECS.get(domain);
+			BidCodec codec = (null != shared) ? shared.get() : null;
+			if (null == codec) {
+				codec = new BidCodec(domain);
+				CODECS.put(domain, new WeakReference<BidCodec>(codec));
+			}
+			return codec;
+		}
+	}
+
+	/**
+	 * Returns whether bids of a domain can be encoded
+	 *
+	 * @param domain
+	 * @return true if all issues are discrete
+	 */
+	public static boolean isDiscrete(Domain domain) {
+		for (Issue issue : domain.getIssues()) {
+			if (!(issue instanceof IssueDiscrete)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Domain getDomain() {
+		return domain;
+	}
+
+	public int getIssueCount() {
+		return issues.length;
+	}
+
+	public IssueDiscrete getIssue(int k) {
+		return issues[k];
+	}
+
+	public int getIssueNumber(int k) {
+		return issueNumbers[k];
+	}
+
+	public int getValueCount(int k) {
+		return values[k].length;
+	}
+
+	public int getMaxValueCount() {
+		return maxValueCount;
+	}
+
+	public ValueDiscrete getValue(int k, int ordinal) {
+		return values[k][ordinal];
+	}
+
+	/**
+	 * Returns the ordinal of a value of the k-th issue, -1 if unknown
+	 *
+	 * @param k
+	 * @param value
+	 * @return int
+	 */
+	public int ordinal(int k, Value value) {
+		Integer ordinal = ordinals.get(k).get(value);
+		return (null == ordinal) ? -1 : ordinal;
+	}
+
+	/**
+	 * Writes the value ordinals of a bid into out
+	 *
+	 * @param bid
+	 * @param out
+	 *            array of at least {@link #getIssueCount()} elements
+	 */
+	public void encode(Bid bid, int[] out) {
+		for (int k = 0; k < issues.length; k++) {
+			out[k] = ordinal(k, bid.getValue(issueNumbers[k]));
+		}
+	}
+
+	/**
+	 * Returns the value ordinals of a bid
+	 *
+	 * @param bid
+	 * @return int[]
+	 */
+	public int[] encode(Bid bid) {
+		int[] code = new int[issues.length];
+		encode(bid, code);
+		return code;
+	}
+
+	/**
+	 * @return true if every bid has a long index
+	 */
+	public boolean isIndexable() {
+		return size > 0;
+	}
+
+	/**
+	 * @return number of possible outcomes, -1 if not indexable
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the mixed-radix index of a bid
+	 *
+	 * @param bid
+	 * @return long, -1 if the bid has a value that is not in the domain
+	 */
+	public long index(Bid bid) {
+		long index = 0;
+		for (int k = 0; k < issues.length; k++) {
+			int ordinal = ordinal(k, bid.getValue(issueNumbers[k]));
+			if (ordinal < 0) {
+				return -1;
+			}
+			index += ordinal * places[k];
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the mixed-radix index of encoded value ordinals
+	 *
+	 * @param code
+	 * @return long
+	 */
+	public long index(int[] code) {
+		long index = 0;
+		for (int k = 0; k < issues.length; k++) {
+			index += code[k] * places[k];
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the value ordinals of a mixed-radix index into out
+	 *
+	 * @param index
+	 * @param out
+	 *            array of at least {@link #getIssueCount()} elements
+	 */
+	public void decode(long index, int[] out) {
+		for (int k = 0; k < issues.length; k++) {
+			out[k] = (int) (index % values[k].length);
+			index /= values[k].length;
+		}
+	}
+
+	/**
+	 * @return true if the ordinals of a bid fit in one long, a few bits per
+	 *         issue
+	 */
+	public boolean isPackable() {
+		return fieldLowBits != 0;
+	}
+
+	/**
+	 * Packs encoded value ordinals into one long, the first issue in the
+	 * lowest bits
+	 *
+	 * @param code
+	 * @return long
+	 */
+	public long pack(int[] code) {
+		long packed = 0;
+		for (int k = 0; k < issues.length; k++) {
+			packed |= ((long) code[k]) << (k * fieldBits);
+		}
+		return packed;
+	}
+
+	/**
+	 * Packs the value ordinals of a mixed-radix index into one long
+	 *
+	 * @param index
+	 * @return long
+	 */
+	public long pack(long index) {
+		long packed = 0;
+		for (int k = 0; k < issues.length; k++) {
+			packed |= (index % values[k].length) << (k * fieldBits);
+			index /= values[k].length;
+		}
+		return packed;
+	}
+
+	/**
+	 * Returns the number of issues with different values between two packed
+	 * bids, comparing all issues at once: the differing bits of every issue
+	 * are folded onto its lowest bit, and those bits are counted.
+	 *
+	 * @param first
+	 * @param second
+	 * @return int
+	 */
+	public int hammingDistance(long first, long second) {
+		long diff = first ^ second;
+		long folded = diff;
+		for (int shift = 1; shift < fieldBits; shift++) {
+			folded |= diff >>> shift;
+		}
+		return Long.bitCount(folded & fieldLowBits);
+	}
+
+	/**
+	 * Returns the bid of encoded value ordinals
+	 *
+	 * @param code
+	 * @return Bid
+	 */
+	public Bid toBid(int[] code) {
+		HashMap<Integer, Value> bidValues = new HashMap<Integer, Value>();
+		for (int k = 0; k < issues.length; k++) {
+			bidValues.put(issueNumbers[k], values[k][code[k]]);
+		}
+		return new Bid(domain, bidValues);
+	}
+
+	/**
+	 * Returns the bid of a mixed-radix index
+	 *
+	 * @param index
+	 * @return Bid
+	 */
+	public Bid toBid(long index) {
+		HashMap<Integer, Value> bidValues = new HashMap<Integer, Value>();
+		for (int k = 0; k < issues.length; k++) {
+			bidValues.put(issueNumbers[k], values[k][(int) (index % values[k].length)]);
+			index /= values[k].length;
+		}
+		return new Bid(domain, bidValues);
+	}
+
+	/**
+	 * Returns the number of issues with different values
+	 *
+	 * @param first
+	 * @param second
+	 * @return int
+	 */
+	public static int hammingDistance(int[] first, int[] second) {
+		int diff = 0;
+		for (int k = 0; k < first.length; k++) {
+			if (first[k] != second[k]) {
+				diff++;
+			}
+		}
+		return diff;
+	}
+}
@@ -0,0 +1,179 @@
+package ai2018.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import genius.core.Bid;
+import genius.core.Domain;
+import genius.core.uncertainty.BidRanking;
+
+/**
+ * Immutable index from a bid to its rank in a bid ranking, that answers in
+ * constant time without comparing bids. <br><br>
+ *
+ * Bids are looked up by their mixed-radix index. If the domain is small
+ * compared to the ranking, the rank of every possible bid is kept in an
+ * array, otherwise in an open-addressing hash table of primitive keys.
+ * Domains that cannot be encoded fall back to a map of bids. If a bid occurs
+ * more than once in the ranking, its lowest rank is used, like
+ * {@link List#indexOf(Object)}.
+ *
+ * @author Group 9
+ */
+public class BidRankIndex {
+
+	/**
+	 * Domains with at most this many outcomes, or at most
+	 * DENSE_FACTOR times the size of the ranking, use an array
+	 */
+	private static final long DENSE_SIZE = 1 << 16;
+	private static final long DENSE_FACTOR = 4;
+
+	private static final long EMPTY = -1;
+
+	private final int size;
+	private final BidCodec codec;
+
+	/**
+	 * rank by mixed-radix index, or -1
+	 */
+	private final int[] denseRanks;
+
+	/**
+	 * hash table from mixed-radix index to rank
+	 */
+	private final long[] keys;
+	private final int[] ranks;
+	private final int mask;
+
+	/**
+	 * only used if the domain cannot be encoded
+	 */
+	private final Map<Bid, Integer> bidRanks;
+
+	/**
+	 * @param ranking
+	 *            bids from low to high utility
+	 */
+	public BidRankIndex(BidRanking ranking) {
+		this(ranking.getBidOrder());
+	}
+
+	/**
+	 * @param bidOrder
+	 *            bids from low to high utility
+	 */
+	public BidRankIndex(List<Bid> bidOrder) {
+		size = bidOrder.size();
+		Domain domain = (size > 0) ? bidOrder.get(0).getDomain() : null;
+
+		if (null == domain || !BidCodec.isDiscrete(domain)
+				|| !BidCodec.forDomain(domain).isIndexable()) {
+			codec = null;
+			denseRanks = null;
+			keys = null;
+			ranks = null;
+			mask = 0;
+			bidRanks = new HashMap<Bid, Integer>();
+			for (int i = size - 1; i >= 0; i--) {
+				bidRanks.put(bidOrder.get(i), i);
+			}
+			return;
+		}
+
+		codec = BidCodec.forDomain(domain);
+		bidRanks = null;
+		if (codec.size() <= Math.max(DENSE_SIZE, DENSE_FACTOR * size)) {
+			denseRanks = new int[(int) codec.size()];
+			Arrays.fill(denseRanks, -1);
+			keys = null;
+			ranks = null;
+			mask = 0;
+			for (int i = size - 1; i >= 0; i--) {
+				long index = codec.index(bidOrder.get(i));
+				if (index >= 0) {
+					denseRanks[(int) index] = i;
+				}
+			}
+		} else {
+			denseRanks = null;
+			int capacity = Integer.highestOneBit(Math.max(2, 2 * size - 1)) << 1;
+			keys = new long[capacity];
+			ranks = new int[capacity];
+			mask = capacity - 1;
+			Arrays.fill(keys, EMPTY);
+			for (int i = 0; i < size; i++) {
+				long index = codec.index(bidOrder.get(i));
+				if (index >= 0) {
+					int slot = find(index);
+					if (EMPTY == keys[slot]) {
+						keys[slot] = index;
+						ranks[slot] = i;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot of a key in the hash table, or the empty slot
+	 * where it would go
+	 *
+	 * @param index
+	 * @return int
+	 */
+	private int find(long index) {
+		int slot = (int) ((index * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (EMPTY != keys[slot] && index != keys[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return number of bids in the ranking
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the rank of a bid, 0 being the lowest
+	 *
+	 * @param bid
+	 * @return int, -1 if the bid is not ranked
+	 */
+	public int getRank(Bid bid) {
+		if (null != bidRanks) {
+			Integer rank = bidRanks.get(bid);
+			return (null == rank) ? -1 : rank;
+		}
+
+		long index = codec.index(bid);
+		if (index < 0) {
+			return -1;
+		}
+		if (null != denseRanks) {
+			return denseRanks[(int) index];
+		}
+		int slot = find(index);
+		return (EMPTY == keys[slot]) ? -1 : ranks[slot];
+	}
+
+	public boolean contains(Bid bid) {
+		return getRank(bid) >= 0;
+	}
+
+	/**
+	 * Returns the rank of a bid divided by the size of the ranking
+	 *
+	 * @param bid
+	 * @return double in [0, 1), or -1 if the bid is not ranked
+	 */
+	public double getPercentile(Bid bid) {
+		int rank = getRank(bid);
+		return (rank < 0) ? -1 : rank / (double) size;
+	}
+}
@@ -0,0 +1,150 @@
+package ai2018.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+import genius.core.boaframework.NegotiationSession;
+
+/**
+ * Seeded source of randomness shared by the BOA components of a negotiation
+ * session, so that two runs of the same configuration take the same code
+ * paths. <br><br>
+ *
+ * The first component of a session that asks for it creates it from its BOA
+ * parameters:
+ * <ul>
+ * <li>seed: the seed, a negative value picks a new seed every session.
+ * <li>rng: 0 to only seed, 1 to also record the seed and every draw to a
+ * log file.
+ * </ul>
+ * A recorded session is run again by passing the seed from its log. The log
+ * file is rng-&lt;seed&gt;-&lt;session&gt;-&lt;unique&gt;.log in the
+ * directory set by the system property ai2018.rng.dir, which defaults to the
+ * log directory of Genius. Draws are appended one at a time, so no file is
+ * kept open after the session.
+ *
+ * @author Group 9
+ */
+public class SessionRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String DIRECTORY_PROPERTY = "ai2018.rng.dir";
+
+	public static final int MODE_SEED = 0;
+	public static final int MODE_RECORD = 1;
+
+	/**
+	 * source of each session, released with the session
+	 */
+	private static final Map<NegotiationSession, SessionRandom> SOURCES
+			= new WeakHashMap<NegotiationSession, SessionRandom>();
+
+	private final long initialSeed;
+
+	/**
+	 * the log the draws are appended to, null if they are not recorded
+	 */
+	private transient Path record;
+
+	/**
+	 * @param seed
+	 */
+	public SessionRandom(long seed) {
+		super(seed);
+		this.initialSeed = seed;
+	}
+
+	/**
+	 * Returns the source of randomness of a session, creating it from the
+	 * BOA parameters of the first component that asks for it
+	 *
+	 * @param negoSession
+	 * @param parameters
+	 * @return SessionRandom shared by the session
+	 */
+	public static SessionRandom forSession(NegotiationSession negoSession, Map<String, Double> parameters) {
+		synchronized (SOURCES) {
+			SessionRandom random = SOURCES.get(negoSession);
+			if (null == random) {
+				long seed = -1;
+				if (null != parameters && parameters.get("seed") != null) {
+					seed = parameters.get("seed").longValue();
+				}
+				if (seed < 0) {
+					seed = new Random().nextLong() & Long.MAX_VALUE;
+				}
+
+				random = new SessionRandom(seed);
+				if (null != parameters && parameters.get("rng") != null
+						&& MODE_RECORD == parameters.get("rng").intValue()) {
+					random.startRecord(Integer.toHexString(System.identityHashCode(negoSession)));
+				}
+				SOURCES.put(negoSession, random);
+			}
+			return random;
+		}
+	}
+
+	/**
+	 * Every draw of {@link Random} goes through here
+	 */
+	@Override
+	protected synchronized int next(int bits) {
+		int value = super.next(bits);
+		if (null != record) {
+			append(bits + " " + value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the seed, to run the session again with
+	 */
+	public long getInitialSeed() {
+		return initialSeed;
+	}
+
+	/**
+	 * Creates a log of its own for the session and writes the seed. Failing
+	 * to create it only means that the draws are not recorded.
+	 *
+	 * @param session
+	 *            identifies the session in the name of the log
+	 */
+	private void startRecord(String session) {
+		String directory = System.getProperty(DIRECTORY_PROPERTY, "log");
+		if (directory.isEmpty()) {
+			return;
+		}
+		try {
+			Path dir = new File(directory).toPath();
+			Files.createDirectories(dir);
+			record = Files.createTempFile(dir, "rng-" + initialSeed + "-" + session + "-", ".log");
+			append("seed " + initialSeed);
+		} catch (IOException e) {
+			record = null;
+		}
+	}
+
+	/**
+	 * Appends a line to the log, and stops recording if that fails
+	 *
+	 * @param line
+	 */
+	private void append(String line) {
+		try {
+			Files.write(record, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			record = null;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package ai2018.common;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import genius.core.bidding.BidDetails;
+import genius.core.boaframework.OutcomeSpace;
+
+/**
+ * Index over all outcomes of a domain, sorted by increasing utility, that
+ * answers utility range queries without searching or copying. <br><br>
+ *
+ * The utility range of the outcomes is split into buckets of equal width,
+ * and for each bucket the offset of its first outcome is stored. A query
+ * jumps to the bucket of the utility and scans only inside that bucket.
+ * Candidate windows are handed out as a reusable view on the sorted arrays,
+ * so an index must not be shared between threads. A window lists its
+ * outcomes by decreasing utility, in the same order as
+ * {@link genius.core.boaframework.SortedOutcomeSpace}, so that strategies
+ * that keep the first of equal bids offer the same bid.
+ *
+ * @author Group 9
+ */
+public class UtilityBucketIndex {
+
+	/**
+	 * Same window as {@link genius.core.boaframework.OMStrategy} uses
+	 * to look for bids near a target utility
+	 */
+	private static final double INITIAL_WINDOW_RANGE = 0.01;
+	private static final double RANGE_INCREMENT = 0.01;
+
+	/**
+	 * average number of outcomes per bucket
+	 */
+	private static final int BUCKET_SIZE = 4;
+
+	private final BidDetails[] bids;
+	private final double[] utils;
+
+	/**
+	 * mixed-radix index of every outcome, null if the domain is not discrete
+	 */
+	private final long[] codes;
+	private final BidCodec codec;
+
+	/**
+	 * value ordinals of every outcome packed in a long, null if they
+	 * do not fit
+	 * @see BidCodec#pack(long)
+	 */
+	private final long[] packedCodes;
+
+	private final double minUtil;
+	private final double bucketWidth;
+	private final int[] bucketStart;
+
+	private final Window window = new Window();
+
+	/**
+	 * @param outcomeSpace
+	 *            outcome space listing all possible bids
+	 */
+	public UtilityBucketIndex(OutcomeSpace outcomeSpace) {
+		List<BidDetails> outcomes = outcomeSpace.getAllOutcomes();
+		bids = outcomes.toArray(new BidDetails[outcomes.size()]);
+		// Sort like SortedOutcomeSpace and reverse, so that reading a range
+		// backwards gives equal outcomes in its order too
+		Arrays.sort(bids, new Comparator<BidDetails>() {
+			@Override
+			public int compare(BidDetails a, BidDetails b) {
+				return Double.compare(b.getMyUndiscountedUtil(), a.getMyUndiscountedUtil());
+			}
+		});
+
+		int n = bids.length;
+		for (int i = 0; i < n / 2; i++) {
+			BidDetails bid = bids[i];
+			bids[i] = bids[n - 1 - i];
+			bids[n - 1 - i] = bid;
+		}
+		utils = new double[n];
+		for (int i = 0; i < n; i++) {
+			utils[i] = bids[i].getMyUndiscountedUtil();
+		}
+
+		if (n > 0 && BidCodec.isDiscrete(bids[0].getBid().getDomain())) {
+			codec = BidCodec.forDomain(bids[0].getBid().getDomain());
+			codes = new long[n];
+			for (int i = 0; i < n; i++) {
+				codes[i] = codec.index(bids[i].getBid());
+			}
+			packedCodes = codec.isPackable() ? new long[n] : null;
+			for (int i = 0; null != packedCodes && i < n; i++) {
+				packedCodes[i] = codec.pack(codes[i]);
+			}
+		} else {
+			codec = null;
+			codes = null;
+			packedCodes = null;
+		}
+
+		int buckets = Math.max(1, n / BUCKET_SIZE);
+		minUtil = (n > 0) ? utils[0] : 0;
+		double range = (n > 0) ? utils[n - 1] - minUtil : 0;
+		bucketWidth = (range > 0) ? range / buckets : 1;
+
+		// bucketStart[b] is the first outcome in bucket b or a later one
+		bucketStart = new int[buckets + 1];
+		int pos = 0;
+		for (int b = 0; b < buckets; b++) {
+			while (pos < n && bucketOf(utils[pos]) < b) {
+				pos++;
+			}
+			bucketStart[b] = pos;
+		}
+		bucketStart[buckets] = n;
+	}
+
+	private int bucketOf(double util) {
+		int b = (int) ((util - minUtil) / bucketWidth);
+		if (b < 0) {
+			return 0;
+		}
+		return Math.min(b, bucketStart.length - 2);
+	}
+
+	/**
+	 * @return number of outcomes
+	 */
+	public int size() {
+		return bids.length;
+	}
+
+	/**
+	 * Returns the position of the first outcome with a utility of at least util
+	 *
+	 * @param util
+	 * @return int in [0, size()]
+	 */
+	public int lowerBound(double util) {
+		int b = bucketOf(util);
+		int pos = bucketStart[b];
+		int end = bucketStart[b + 1];
+		while (pos < end && utils[pos] < util) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the position of the first outcome with a utility above util
+	 *
+	 * @param util
+	 * @return int in [0, size()]
+	 */
+	public int upperBound(double util) {
+		int b = bucketOf(util);
+		int pos = bucketStart[b];
+		int end = bucketStart[b + 1];
+		while (pos < end && utils[pos] <= util) {
+			pos++;
+		}
+		return pos;
+	}
+
+	public BidDetails getBidDetails(int pos) {
+		return bids[pos];
+	}
+
+	public double getUtility(int pos) {
+		return utils[pos];
+	}
+
+	/**
+	 * @param pos
+	 * @return mixed-radix index of the outcome
+	 * @see BidCodec#index(genius.core.Bid)
+	 */
+	public long getCode(int pos) {
+		return codes[pos];
+	}
+
+	public boolean hasCodes() {
+		return null != codes;
+	}
+
+	/**
+	 * @return mixed-radix indices of all outcomes, by increasing utility.
+	 *         The array is shared and must not be modified.
+	 */
+	public long[] getCodes() {
+		return codes;
+	}
+
+	/**
+	 * @return packed value ordinals of all outcomes, by increasing utility,
+	 *         or null if they do not fit. The array is shared and must not be
+	 *         modified.
+	 */
+	public long[] getPackedCodes() {
+		return packedCodes;
+	}
+
+	/**
+	 * @return codec of the codes, null if the domain is not discrete
+	 */
+	public BidCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return the outcome with the highest utility
+	 */
+	public BidDetails getMaxBid() {
+		return bids[bids.length - 1];
+	}
+
+	/**
+	 * @return the outcome with the lowest utility
+	 */
+	public BidDetails getMinBid() {
+		return bids[0];
+	}
+
+	/**
+	 * Returns the outcome with the utility closest to util
+	 *
+	 * @param util
+	 * @return BidDetails
+	 */
+	public BidDetails getBidNearUtility(double util) {
+		int pos = lowerBound(util);
+		if (pos == bids.length) {
+			return bids[pos - 1];
+		}
+		if (pos > 0 && util - utils[pos - 1] < utils[pos] - util) {
+			return bids[pos - 1];
+		}
+		return bids[pos];
+	}
+
+	/**
+	 * Returns the outcomes with a utility in [lower, upper]. The returned
+	 * view is reused by the next call to a window method.
+	 *
+	 * @param lower
+	 * @param upper
+	 * @return Window
+	 */
+	public Window window(double lower, double upper) {
+		window.from = lowerBound(lower);
+		window.to = Math.max(window.from, upperBound(upper));
+		return window;
+	}
+
+	/**
+	 * Returns the candidate window of a target utility like
+	 * {@link genius.core.boaframework.OMStrategy} would: the outcomes in
+	 * [target, target + 0.01], widening the upper bound in steps of 0.01 until
+	 * there are any. If there are none, the window holds the best outcome. The
+	 * returned view is reused by the next call to a window method.
+	 *
+	 * @param target
+	 * @return Window
+	 */
+	public Window window(double target) {
+		window.from = lowerBound(target);
+		if (window.from == bids.length) {
+			window.from = Math.max(0, bids.length - 1);
+			window.to = bids.length;
+			return window;
+		}
+
+		double upper = target + INITIAL_WINDOW_RANGE;
+		window.to = upperBound(upper);
+		while (window.to == window.from) {
+			upper += RANGE_INCREMENT;
+			window.to = upperBound(upper);
+		}
+		return window;
+	}
+
+	/**
+	 * Returns the outcomes at positions [from, to). The returned view is
+	 * reused by the next call to a window method.
+	 *
+	 * @param from
+	 * @param to
+	 * @return Window
+	 */
+	public Window range(int from, int to) {
+		window.from = from;
+		window.to = to;
+		return window;
+	}
+
+	/**
+	 * View on a range [from, to) of the sorted outcomes, from the highest
+	 * utility down: element i is the outcome at position to - 1 - i
+	 */
+	public class Window extends AbstractList<BidDetails> implements RandomAccess {
+
+		private int from;
+		private int to;
+
+		private Window() {
+		}
+
+		@Override
+		public BidDetails get(int i) {
+			return bids[to - 1 - i];
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+
+		/**
+		 * @param i
+		 *            element of the window
+		 * @return position of the element in the index
+		 */
+		public int getPosition(int i) {
+			return to - 1 - i;
+		}
+
+		/**
+		 * @return position of the first outcome in the index
+		 */
+		public int getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return position after the last outcome in the index
+		 */
+		public int getTo() {
+			return to;
+		}
+
+		public UtilityBucketIndex getIndex() {
+			return UtilityBucketIndex.this;
+		}
+	}
+}
@@ -5,7 +5,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import ai2018.common.BidRankIndex;
 import genius.core.Bid;
+import genius.core.bidding.BidDetails;
 import genius.core.boaframework.AcceptanceStrategy;
 import genius.core.boaframework.Actions;
 import genius.core.boaframework.BOAparameter;
@@ -17,13 +19,18 @@ import genius.core.utility.AdditiveUtilitySpace;
 /**
  * Acceptance Strategy of BOAFramework <br>
  * 
- * Accepts:
+ * Accepts an offer with a utility of at least min(a, sqrt(time left) + 0.35),
+ * and optionally:
  * <ul>
- * <li>if we have uncertainty profile, and we receive an offer in our highest
- * 10% best bids.
- * <li>if we have normal utilityspace, and we receive offer with a utility
- * better than 90% of what we offered last.
+ * <li>m, w, q: in the last w of the time, an offer at least the best (m = 1)
+ * or the average (m = 2) of the offers in the last w, or the q-quantile of
+ * all offers (m = 3).
+ * <li>n: an offer at least as good as our next bid (AC_Next).
  * </ul>
+ * If we have an uncertainty profile, the utility space is estimated from the
+ * bid ranking, or fitted to it if r = 1, and an offer that ranks below the
+ * threshold is rejected. With u = 1 the rank of an offer that is not in the
+ * ranking is estimated from the nearest ranked bids. <br>
  * Discount is ignored.
  * 
  * @author Group 9
@@ -36,6 +43,45 @@ public class Group9_AS extends AcceptanceStrategy {
 	 */
 	private double a;
 	
+	/**
+	 * whether the utility space under uncertainty is fitted to the bid
+	 * ranking, instead of estimated like the opponent model
+	 */
+	private boolean rankRegression;
+	
+	/**
+	 * under uncertainty, the rank of each bid in the bid ranking
+	 */
+	private BidRankIndex rankIndex;
+	
+	/**
+	 * under uncertainty, whether the rank of bids that are not ranked is
+	 * estimated from the nearest ranked bids
+	 */
+	private boolean estimateRanks;
+	private HammingRankTree rankTree;
+	
+	/**
+	 * Accept an offer in the last w of the time if it is at least the best
+	 * (AC_MaxW) or the average (AC_Avg) of the earlier offers in the last w
+	 * of the time, or their q-quantile, which is estimated over all earlier
+	 * offers. The statistics are updated once per offer.
+	 */
+	private static final int WINDOW_NONE = 0;
+	private static final int WINDOW_MAX = 1;
+	private static final int WINDOW_AVERAGE = 2;
+	private static final int WINDOW_QUANTILE = 3;
+	private int windowMode;
+	private double windowLength;
+	private UtilityWindow window;
+	private P2Quantile quantile;
+	private int offersSeen;
+	
+	/**
+	 * whether offers at least as good as our own next bid are accepted
+	 */
+	private boolean acceptNext;
+	
 	/**
 	 * our general Accept Strategy
 	 */
@@ -76,6 +122,7 @@ public class Group9_AS extends AcceptanceStrategy {
 			Map<String, Double> parameters) throws Exception {
 		this.negotiationSession = negoSession;
 		this.offeringStrategy = strat;
+		this.opponentModel = opponentModel;
 
 		if (parameters.get("a") != null) {
 			a = parameters.get("a");
@@ -83,6 +130,46 @@ public class Group9_AS extends AcceptanceStrategy {
 			a = 0.8;
 		}
 		
+		if (parameters.get("r") != null) {
+			rankRegression = parameters.get("r") > 0;
+		} else {
+			rankRegression = false;
+		}
+		
+		if (parameters.get("u") != null) {
+			estimateRanks = parameters.get("u") > 0;
+		} else {
+			estimateRanks = false;
+		}
+		
+		if (parameters.get("m") != null) {
+			windowMode = parameters.get("m").intValue();
+		} else {
+			windowMode = WINDOW_NONE;
+		}
+		
+		if (parameters.get("w") != null) {
+			windowLength = parameters.get("w");
+		} else {
+			windowLength = 0.05;
+		}
+		
+		double q;
+		if (parameters.get("q") != null) {
+			q = parameters.get("q");
+		} else {
+			q = 0.9;
+		}
+		if (parameters.get("n") != null) {
+			acceptNext = parameters.get("n") > 0;
+		} else {
+			acceptNext = false;
+		}
+		
+		window = new UtilityWindow(windowLength);
+		quantile = new P2Quantile(q);
+		offersSeen = 0;
+		
 		// under uncertainty
 		if (null != negotiationSession.getUserModel()) {
 			// 1. estimated utility space
@@ -92,6 +179,12 @@ public class Group9_AS extends AcceptanceStrategy {
 			this.negotiationSession = new NegotiationSession(negoSession.getSessionData(), 
 					u, negoSession.getTimeline(), negoSession.getOutcomeSpace(), 
 					negoSession.getUserModel());
+			
+			// 3. index the bid ranking
+			rankIndex = new BidRankIndex(negoSession.getUserModel().getBidRanking());
+			if (estimateRanks) {
+				rankTree = new HammingRankTree(negoSession.getUserModel().getBidRanking());
+			}
 		}
 	}
 	
@@ -102,20 +195,24 @@ public class Group9_AS extends AcceptanceStrategy {
 	 * @return AdditiveUtilitySpace
 	 */
 	private AdditiveUtilitySpace initUncertainty(NegotiationSession negoSession) {
-		Group9_UtilitySpaceFactory factory = new Group9_UtilitySpaceFactory(negoSession.getDomain());
+		if (rankRegression) {
+			return UtilitySpaceRegistry.getRegressionEstimate(negoSession);
+		}
+		
+		double learnCoef = Group9_UtilitySpaceFactory.DEFAULT_LEARN_COEF;
+		int learnValueAddition = Group9_UtilitySpaceFactory.DEFAULT_LEARN_VALUE_ADDITION;
 		
 		// since we use similar strategy to that of Opponent Model
 		// get the parameters from OM if possible
 		if (opponentModel instanceof Group9_OM) {
 			Group9_OM om = (Group9_OM)opponentModel;
 
-			factory.setLearnCoef(om.getLearnCoef());
-			factory.setLearnValueAddition(om.getLearnValueAddition());
+			learnCoef = om.getLearnCoef();
+			learnValueAddition = om.getLearnValueAddition();
 		}
 		
-		// estimate the utility space
-		factory.estimateUsingBidRanks(negotiationSession.getUserModel().getBidRanking());
-		return factory.getUtilitySpace();
+		// estimate the utility space once for all components of the session
+		return UtilitySpaceRegistry.getEstimate(negoSession, learnCoef, learnValueAddition);
 	}
 
 	@Override
@@ -133,7 +230,8 @@ public class Group9_AS extends AcceptanceStrategy {
 			return Actions.Reject;
 		}
 		
-		double timeLeft = 1 - negotiationSession.getTime(); //ranges [0, 1]
+		double time = negotiationSession.getTime();
+		double timeLeft = 1 - time; //ranges [0, 1]
 		
 		// Accept if our utility is above a or above the square root of time left + 0.35
 		
@@ -143,22 +241,24 @@ public class Group9_AS extends AcceptanceStrategy {
 		double lastOpponentBidUtil = negotiationSession.getOpponentBidHistory()
 				.getLastBidDetails().getMyUndiscountedUtil();
 		
-		// Accept if the utility is higher than the calculated acceptThreshold
-		if (lastOpponentBidUtil >= acceptThreshold) {
+		// Accept if the utility is higher than the calculated acceptThreshold,
+		// or near the deadline if it beats the earlier offers in the window,
+		// or if it is at least as good as the bid we would offer next
+		if (lastOpponentBidUtil >= acceptThreshold
+				|| (timeLeft <= windowLength && lastOpponentBidUtil >= getWindowTarget(time))
+				|| (acceptNext && lastOpponentBidUtil >= getNextBidUtil())) {
 			
 			// Under uncertainty
 			// Apply ranking rule to make sure we accept a high-utility bid
-			if (null != negotiationSession.getUserModel()) {
-				List<Bid> bidOrder = 
-						negotiationSession.getUserModel().getBidRanking().getBidOrder();
+			if (null != rankIndex) {
+				double percentile = rankIndex.getPercentile(receivedBid);
+				if (percentile < 0 && null != rankTree) {
+					percentile = rankTree.getPercentile(receivedBid);
+				}
 				
-				if (bidOrder.contains(receivedBid)) {
-					double percentile = bidOrder.indexOf(receivedBid)
-							/ (double) bidOrder.size();
-					// Reject if the bid ranks lower than acceptThreshold
-					if (percentile < acceptThreshold) {
-						return Actions.Reject;
-					}
+				// Reject if the bid is ranked lower than acceptThreshold
+				if (percentile >= 0 && percentile < acceptThreshold) {
+					return Actions.Reject;
 				}
 			}
 			
@@ -168,11 +268,70 @@ public class Group9_AS extends AcceptanceStrategy {
 		return Actions.Reject;
 	}
 	
+	/**
+	 * Returns the utility of the bid we offer this round. A pipelined
+	 * offering strategy searches it at most once, whether it is asked
+	 * before or after the agent offers it.
+	 * 
+	 * @return double, positive infinity if there is no next bid
+	 */
+	private double getNextBidUtil() {
+		BidDetails nextBid;
+		if (offeringStrategy instanceof PipelinedOfferingStrategy) {
+			nextBid = offeringStrategy.determineNextBid();
+		} else {
+			nextBid = offeringStrategy.getNextBid();
+		}
+		return (null == nextBid) ? Double.POSITIVE_INFINITY : nextBid.getMyUndiscountedUtil();
+	}
+	
+	/**
+	 * Adds the offers before the last one to the window statistics,
+	 * and returns the utility the last offer has to reach
+	 * 
+	 * @param time
+	 * @return double, positive infinity if there is no window condition
+	 */
+	private double getWindowTarget(double time) {
+		if (WINDOW_NONE == windowMode) {
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		List<BidDetails> history = negotiationSession.getOpponentBidHistory().getHistory();
+		while (offersSeen < history.size() - 1) {
+			BidDetails offer = history.get(offersSeen++);
+			window.add(offer.getTime(), offer.getMyUndiscountedUtil());
+			quantile.add(offer.getMyUndiscountedUtil());
+		}
+		window.expire(time);
+		if (0 == window.size()) {
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		switch (windowMode) {
+		case WINDOW_MAX:
+			return window.getMax();
+		case WINDOW_AVERAGE:
+			return window.getAverage();
+		case WINDOW_QUANTILE:
+			return quantile.getQuantile();
+		default:
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+	
 	@Override
 	public Set<BOAparameter> getParameterSpec() {
 
 		Set<BOAparameter> set = new HashSet<BOAparameter>();
 		set.add(new BOAparameter("a", 0.8, ACCEPT_STRATEGY));
+		set.add(new BOAparameter("r", 0.0, "1 to fit the utility space under uncertainty to the bid ranking"));
+		set.add(new BOAparameter("u", 0.0, "1 to estimate the rank of unranked bids from the nearest ranked bids"));
+		set.add(new BOAparameter("m", 0.0, "Near the deadline also accept offers at least the "
+				+ "1: best, 2: average of the offers in the window, 3: q-quantile of all offers"));
+		set.add(new BOAparameter("w", 0.05, "Time window of the offers, which is also when it applies"));
+		set.add(new BOAparameter("q", 0.9, "Quantile of the offers to accept in mode 3"));
+		set.add(new BOAparameter("n", 0.0, "1 to also accept offers at least as good as our next bid"));
 
 		return set;
 	}
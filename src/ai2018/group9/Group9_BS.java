@@ -1,20 +1,25 @@
 package ai2018.group9;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import ai2018.common.BidCodec;
+import ai2018.common.BidRankIndex;
+import ai2018.common.UtilityBucketIndex;
 import genius.core.Bid;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
 import genius.core.boaframework.NoModel;
 import genius.core.boaframework.OMStrategy;
-import genius.core.boaframework.OfferingStrategy;
 import genius.core.boaframework.OpponentModel;
 import genius.core.boaframework.SortedOutcomeSpace;
-import genius.core.uncertainty.UserModel;
+import genius.core.timeline.DiscreteTimeline;
+import genius.core.timeline.TimeLineInfo;
+import genius.core.uncertainty.BidRanking;
 import genius.core.utility.AdditiveUtilitySpace;
 /**
  * Bidding Strategy of BOAFramework <br><br>
@@ -27,7 +32,7 @@ import genius.core.utility.AdditiveUtilitySpace;
  * 
  * @author Group 9
  */
-public class Group9_BS extends OfferingStrategy {
+public class Group9_BS extends PipelinedOfferingStrategy {
 
 	/**
 	 * Minimum target utility
@@ -53,6 +58,90 @@ public class Group9_BS extends OfferingStrategy {
 	private double n;
 	
 	private SortedOutcomeSpace outcomespace;
+	
+	/**
+	 * Index on the outcome space for utility range queries
+	 */
+	private UtilityBucketIndex index;
+	
+	/**
+	 * Domains with more outcomes than this are not enumerated,
+	 * bids are generated from utility bands instead
+	 */
+	private double maxOutcomes;
+	
+	/**
+	 * Half width of the utility band around the target utility, and the
+	 * maximum number of bids taken from it
+	 */
+	private double bandWidth;
+	private int maxCandidates;
+	
+	/**
+	 * Under uncertainty, the rank percentile of the ranked bids,
+	 * and of each bid in the index
+	 */
+	private BidRankIndex rankIndex;
+	private double[] percentiles;
+	
+	/**
+	 * Under uncertainty, whether the rank of bids that are not ranked is
+	 * estimated from the nearest ranked bids
+	 */
+	private boolean estimateRanks;
+	private HammingRankTree rankTree;
+	
+	/**
+	 * Percentile of bids that are not ranked, which are never too low
+	 */
+	private static final double UNRANKED = Double.POSITIVE_INFINITY;
+	
+	/**
+	 * Percentile of bids in the index that are not ranked and whose rank
+	 * has not been estimated yet
+	 */
+	private static final double NOT_ESTIMATED = Double.NaN;
+	
+	/**
+	 * Step by which a candidate window is widened, as in OMStrategy
+	 */
+	private static final double RANGE_INCREMENT = 0.01;
+	
+	/**
+	 * Used instead of the outcome space on huge domains
+	 */
+	private UtilityBandGenerator generator;
+	private List<BidDetails> candidates;
+	private int[] candidateCode;
+	
+	/**
+	 * whether the utility space under uncertainty is fitted to the bid
+	 * ranking, instead of estimated like the opponent model
+	 */
+	private boolean rankRegression;
+	
+	/**
+	 * Under a discrete timeline, the time and target utility of each round,
+	 * and the candidate window of the target, as positions in the index.
+	 * Without opponent model the bid itself is stored instead.
+	 */
+	private double[] scheduleTimes;
+	private double[] scheduleTargets;
+	private int[] scheduleFrom;
+	private int[] scheduleTo;
+	private BidDetails[] scheduleBids;
+	
+	/**
+	 * Longer deadlines are not precomputed
+	 */
+	private static final int MAX_SCHEDULED_ROUNDS = 10000;
+	
+	/**
+	 * Positions of the bids in the last candidate window
+	 * that do not rank below the target
+	 */
+	private int[] rankedPositions;
+	private int rankedCount;
 
 	/**
 	 * Method which initializes the agent by setting all parameters.
@@ -75,8 +164,46 @@ public class Group9_BS extends OfferingStrategy {
 		super.init(negoSession, parameters);
 		this.negotiationSession = negoSession;
 
-		outcomespace = new SortedOutcomeSpace(negotiationSession.getUtilitySpace());
-		negotiationSession.setOutcomeSpace(outcomespace);
+		if (parameters.get("o") != null) {
+			this.maxOutcomes = parameters.get("o");
+		} else {
+			this.maxOutcomes = 200000;
+		}
+
+		if (parameters.get("b") != null) {
+			this.bandWidth = parameters.get("b");
+		} else {
+			this.bandWidth = 0.01;
+		}
+
+		if (parameters.get("c") != null) {
+			this.maxCandidates = parameters.get("c").intValue();
+		} else {
+			this.maxCandidates = 500;
+		}
+
+		if (parameters.get("r") != null) {
+			this.rankRegression = parameters.get("r") > 0;
+		} else {
+			this.rankRegression = false;
+		}
+
+		if (parameters.get("u") != null) {
+			this.estimateRanks = parameters.get("u") > 0;
+		} else {
+			this.estimateRanks = false;
+		}
+
+		// Only list and sort the outcome space if it is small enough
+		if (isEnumerable(negotiationSession)) {
+			outcomespace = new SortedOutcomeSpace(negotiationSession.getUtilitySpace());
+			negotiationSession.setOutcomeSpace(outcomespace);
+			index = new UtilityBucketIndex(outcomespace);
+		} else {
+			generator = new UtilityBandGenerator((AdditiveUtilitySpace) negotiationSession.getUtilitySpace());
+			candidates = new ArrayList<BidDetails>();
+			candidateCode = new int[generator.getCodec().getIssueCount()];
+		}
 
 		if (parameters.get("e") != null) {
 			this.e = parameters.get("e");
@@ -92,14 +219,18 @@ public class Group9_BS extends OfferingStrategy {
 
 		if (parameters.get("min") != null) {
 			this.Pmin = parameters.get("min");
+		} else if (null != generator) {
+			this.Pmin = generator.getMinUtility();
 		} else {
-			this.Pmin = negoSession.getMinBidinDomain().getMyUndiscountedUtil();
+			this.Pmin = index.getMinBid().getMyUndiscountedUtil();
 		}
 
 		if (parameters.get("max") != null) {
 			Pmax = parameters.get("max");
+		} else if (null != generator) {
+			Pmax = generator.getMaxUtility();
 		} else {
-			BidDetails maxBid = negoSession.getMaxBidinDomain();
+			BidDetails maxBid = index.getMaxBid();
 			Pmax = maxBid.getMyUndiscountedUtil();
 		}
 
@@ -115,10 +246,31 @@ public class Group9_BS extends OfferingStrategy {
 			this.negotiationSession = new NegotiationSession(negoSession.getSessionData(), 
 					u, negoSession.getTimeline(), negoSession.getOutcomeSpace(), 
 					negoSession.getUserModel());
+			
+			// 3. rank the bids we may offer
+			initRanks(negoSession.getUserModel().getBidRanking());
 		}
+		
+		initSchedule(negotiationSession.getTimeline());
 	}
 	
 	
+	/**
+	 * Determines whether the outcome space is listed and sorted, which is
+	 * required unless the utility space is additive over discrete issues
+	 * 
+	 * @param negoSession
+	 * @return true if the domain has at most maxOutcomes outcomes
+	 */
+	private boolean isEnumerable(NegotiationSession negoSession) {
+		if (!(negoSession.getUtilitySpace() instanceof AdditiveUtilitySpace)
+				|| !BidCodec.isDiscrete(negoSession.getDomain())) {
+			return true;
+		}
+		BidCodec codec = BidCodec.forDomain(negoSession.getDomain());
+		return codec.isIndexable() && codec.size() <= maxOutcomes;
+	}
+	
 	/**
 	 * Initializes and estimates utility space under uncertainty
 	 * 
@@ -126,85 +278,315 @@ public class Group9_BS extends OfferingStrategy {
 	 * @return AdditiveUtilitySpace
 	 */
 	private AdditiveUtilitySpace initUncertainty(NegotiationSession negoSession) {
-		Group9_UtilitySpaceFactory factory = new Group9_UtilitySpaceFactory(negoSession.getDomain());
-
+		if (rankRegression) {
+			return UtilitySpaceRegistry.getRegressionEstimate(negoSession);
+		}
+		
+		double learnCoef = Group9_UtilitySpaceFactory.DEFAULT_LEARN_COEF;
+		int learnValueAddition = Group9_UtilitySpaceFactory.DEFAULT_LEARN_VALUE_ADDITION;
+		
 		// since we use similar strategy to that of Opponent Model
-		// get the parameters from the opponent model if there is one
+		// get the parameters from the opponent model if possible
 		if (opponentModel instanceof Group9_OM) {
 			Group9_OM om = (Group9_OM)opponentModel;
 
-			factory.setLearnCoef(om.getLearnCoef());
-			factory.setLearnValueAddition(om.getLearnValueAddition());
+			learnCoef = om.getLearnCoef();
+			learnValueAddition = om.getLearnValueAddition();
 		}
 		
-		// estimate the utility space
-		factory.estimateUsingBidRanks(negotiationSession.getUserModel().getBidRanking());
-		return factory.getUtilitySpace();
-	}
-
-	@Override
-	public BidDetails determineOpeningBid() {
-		return determineNextBid();
+		// estimate the utility space once for all components of the session
+		return UtilitySpaceRegistry.getEstimate(negoSession, learnCoef, learnValueAddition);
 	}
 
 	/**
 	 * Simple offering strategy which retrieves the target utility and looks for
 	 * the nearest bid if no opponent model is specified. If an opponent model
 	 * is specified, then the agent return a bid according to the opponent model
-	 * strategy.
+	 * strategy. Runs once per round.
 	 */
 	@Override
-	public BidDetails determineNextBid() {
+	protected BidDetails searchNextBid() {
 		double time = negotiationSession.getTime();
-		double[] utilityGoal = new double[1];
-		utilityGoal[0] = p(time);
+		int round = getScheduledRound(time);
+		double utilityGoal = (round >= 0) ? scheduleTargets[round] : p(time);
+		
+		// huge domain, take the candidates from a utility band
+		if (null != generator) {
+			return getBidFromBand(utilityGoal);
+		// under uncertainty, only offer bids that rank as high as the utility goal
+		} else if (null != percentiles) {
+			return getRankedBid(utilityGoal);
+		// a round of the precomputed schedule
+		} else if (round >= 0) {
+			return getScheduledBid(round);
+		// if there is no opponent model available
+		} else if (opponentModel instanceof NoModel) {
+			return index.getBidNearUtility(utilityGoal);
+		} else {
+			return omStrategy.getBid(index.window(utilityGoal));
+		}
+	}
+	
+	/**
+	 * Collects the bids of the candidate window of the target that do not 
+	 * rank below the target, widening the window until there are any, and 
+	 * picks one with a single call to the opponent model strategy.
+	 * Without opponent model the lowest bid above the target is returned.
+	 * 
+	 * @param target
+	 * @return BidDetails
+	 */
+	private BidDetails getRankedBid(double target) {
+		collectRanked(target);
 		
-		do {
-			// if there is no opponent model available
+		// every bid above the target ranks too low, ignore the ranking
+		if (0 == rankedCount) {
 			if (opponentModel instanceof NoModel) {
-				nextBid = negotiationSession.getOutcomeSpace().getBidNearUtility(utilityGoal[0]);
-			} else {
-				nextBid = omStrategy.getBid(outcomespace, utilityGoal[0]);
+				return index.getBidNearUtility(target);
 			}
-			// under uncertainty, if the bid isn't good, 
-			// increase the utility goal and keep searching
-		} while (!isGoodBidUnderUncertainty(nextBid, utilityGoal) && utilityGoal[0] < 1.0);
-
-
-		return nextBid;
+			return omStrategy.getBid(index.window(target));
+		}
+		
+		if (opponentModel instanceof NoModel) {
+			return index.getBidDetails(rankedPositions[0]);
+		}
+		// highest utility first, like a window of the index
+		candidates.clear();
+		for (int i = rankedCount - 1; i >= 0; i--) {
+			candidates.add(index.getBidDetails(rankedPositions[i]));
+		}
+		return omStrategy.getBid(candidates);
 	}
 	
 	/**
-	 * Determine if the bid is good to offer under uncertainty
-	 * by checking whether the bid rank satisfies the utility goal
+	 * Fills rankedPositions with the bids of the candidate window of the 
+	 * target that do not rank below the target, widening the window until 
+	 * there are any
 	 * 
-	 * @param bid
-	 * @param h
-	 * @return boolean
+	 * @param target
 	 */
-	private boolean isGoodBidUnderUncertainty(BidDetails bid, double[] h) {
+	private void collectRanked(double target) {
+		rankedCount = 0;
+		double upper = target + RANGE_INCREMENT;
+		for (int pos = index.lowerBound(target); pos < index.size(); pos++) {
+			double util = index.getUtility(pos);
+			if (util > upper) {
+				if (rankedCount > 0) {
+					break;
+				}
+				while (util > upper) {
+					upper += RANGE_INCREMENT;
+				}
+			}
+			if (getPercentile(pos) >= target) {
+				rankedPositions[rankedCount++] = pos;
+			}
+		}
+	}
+	
+	/**
+	 * Under a discrete timeline, precomputes the target utility of every
+	 * round and its candidate window, so that a round only reads the
+	 * schedule. Only the pick of the opponent model strategy, which
+	 * depends on the opponent model, is left for the round itself. Under
+	 * uncertainty the ranked bids of the window are collected in the round
+	 * as well, rather than kept for every round.
+	 * 
+	 * @param timeline
+	 */
+	private void initSchedule(TimeLineInfo timeline) {
+		scheduleTimes = null;
+		if (!(timeline instanceof DiscreteTimeline) || null == index || 0 == index.size()
+				|| timeline.getTotalTime() <= 0 || timeline.getTotalTime() > MAX_SCHEDULED_ROUNDS) {
+			return;
+		}
+		int rounds = (int) timeline.getTotalTime() + 1;
+		scheduleTimes = new double[rounds];
+		scheduleTargets = new double[rounds];
+		scheduleFrom = new int[rounds];
+		scheduleTo = new int[rounds];
+		scheduleBids = (opponentModel instanceof NoModel && null == percentiles) 
+				? new BidDetails[rounds] : null;
 		
-		// Under uncertainty
-		UserModel userModel = negotiationSession.getUserModel();
-		if (null != userModel) {
-			List<Bid> bidOrder = userModel.getBidRanking().getBidOrder();
+		for (int round = 0; round < rounds; round++) {
+			scheduleTimes[round] = Math.min(1, round / timeline.getTotalTime());
+			scheduleTargets[round] = p(scheduleTimes[round]);
 			
-			if (bidOrder.contains(bid.getBid())) {
-				double percentile = bidOrder.indexOf(bid.getBid())
-						/ (double) bidOrder.size();
-				// Not a good bid if it ranks lower than the utility goal
-				if (percentile < h[0]) {
-					// Increase the utility goal a little bit if bid ranks too low
-					h[0] = (h[0] > 0.99) ? 1 : (h[0] + 0.01);
-					return false;
+			// rounds with the same target share their window
+			if (round > 0 && scheduleTargets[round] == scheduleTargets[round - 1]) {
+				scheduleFrom[round] = scheduleFrom[round - 1];
+				scheduleTo[round] = scheduleTo[round - 1];
+				if (null != scheduleBids) {
+					scheduleBids[round] = scheduleBids[round - 1];
 				}
+				continue;
+			}
+			
+			UtilityBucketIndex.Window window = index.window(scheduleTargets[round]);
+			scheduleFrom[round] = window.getFrom();
+			scheduleTo[round] = window.getTo();
+			if (null != scheduleBids) {
+				scheduleBids[round] = index.getBidNearUtility(scheduleTargets[round]);
 			}
-		} else {
-			//Returns true if not under uncertainty
-			return true;
 		}
-
-		return true;
+	}
+	
+	/**
+	 * Returns the round of the schedule at a time, or -1 if there is no
+	 * schedule or the time is not that of the current round
+	 * 
+	 * @param time
+	 * @return int
+	 */
+	private int getScheduledRound(double time) {
+		if (null == scheduleTimes) {
+			return -1;
+		}
+		int round = (int) negotiationSession.getTimeline().getCurrentTime();
+		if (round < 0 || round >= scheduleTimes.length || scheduleTimes[round] != time) {
+			return -1;
+		}
+		return round;
+	}
+	
+	/**
+	 * Returns the bid of a round of the schedule, letting the opponent 
+	 * model strategy pick it from the precomputed candidates
+	 * 
+	 * @param round
+	 * @return BidDetails
+	 */
+	private BidDetails getScheduledBid(int round) {
+		if (null != scheduleBids) {
+			return scheduleBids[round];
+		}
+		return omStrategy.getBid(index.range(scheduleFrom[round], scheduleTo[round]));
+	}
+	
+	/**
+	 * Collects up to maxCandidates bids with a utility within bandWidth
+	 * of the target, widening the band until there are any, and picks one.
+	 * Under uncertainty bids that rank below the target are left out,
+	 * unless no bid of the domain remains.
+	 * Without opponent model the bid closest to the target is returned.
+	 * 
+	 * @param target
+	 * @return BidDetails
+	 */
+	private BidDetails getBidFromBand(double target) {
+		double minPercentile = (null != rankIndex) ? target : Double.NEGATIVE_INFINITY;
+		double epsilon = bandWidth;
+		collectBand(target - epsilon, target + epsilon, minPercentile);
+		while (candidates.isEmpty() && (target - epsilon > generator.getMinUtility()
+				|| target + epsilon < generator.getMaxUtility())) {
+			epsilon *= 2;
+			collectBand(target - epsilon, target + epsilon, minPercentile);
+		}
+		if (candidates.isEmpty() && null != rankIndex) {
+			collectBand(target - epsilon, target + epsilon, Double.NEGATIVE_INFINITY);
+		}
+		
+		if (candidates.isEmpty()) {
+			generator.maxBid(candidateCode);
+			return new BidDetails(generator.getCodec().toBid(candidateCode), 
+					generator.getMaxUtility(), negotiationSession.getTime());
+		}
+		
+		if (opponentModel instanceof NoModel) {
+			BidDetails nearest = candidates.get(0);
+			for (int i = 1; i < candidates.size(); i++) {
+				BidDetails bid = candidates.get(i);
+				if (Math.abs(bid.getMyUndiscountedUtil() - target) 
+						< Math.abs(nearest.getMyUndiscountedUtil() - target)) {
+					nearest = bid;
+				}
+			}
+			return nearest;
+		}
+		return omStrategy.getBid(candidates);
+	}
+	
+	/**
+	 * Fills the candidates with bids whose utility is in [lower, upper]
+	 * and that do not rank below minPercentile
+	 * 
+	 * @param lower
+	 * @param upper
+	 * @param minPercentile
+	 */
+	private void collectBand(double lower, double upper, double minPercentile) {
+		candidates.clear();
+		generator.reset(lower, upper);
+		while (candidates.size() < maxCandidates && generator.next(candidateCode)) {
+			Bid bid = generator.getCodec().toBid(candidateCode);
+			if (getPercentile(bid) >= minPercentile) {
+				candidates.add(new BidDetails(bid, generator.getUtility(), 
+						negotiationSession.getTime()));
+			}
+		}
+	}
+	
+	/**
+	 * Precomputes the rank percentile of every ranked bid in the index, so
+	 * that bids that rank too low can be left out of a candidate window
+	 * without looking them up in the bid ranking. The rank of the other bids
+	 * is only estimated once a window reaches them, which keeps the nearest
+	 * bid lookups out of the initialization.
+	 * 
+	 * @param bidRanking
+	 */
+	private void initRanks(BidRanking bidRanking) {
+		rankIndex = new BidRankIndex(bidRanking);
+		if (estimateRanks) {
+			rankTree = new HammingRankTree(bidRanking);
+		}
+		
+		if (null != index) {
+			percentiles = new double[index.size()];
+			for (int pos = 0; pos < index.size(); pos++) {
+				double percentile = rankIndex.getPercentile(index.getBidDetails(pos).getBid());
+				if (percentile >= 0) {
+					percentiles[pos] = percentile;
+				} else {
+					percentiles[pos] = (null != rankTree) ? NOT_ESTIMATED : UNRANKED;
+				}
+			}
+			candidates = new ArrayList<BidDetails>();
+			rankedPositions = new int[index.size()];
+		}
+	}
+	
+	/**
+	 * Returns the rank percentile of a bid in the index, 
+	 * estimating it the first time it is asked for
+	 * 
+	 * @param pos
+	 * @return double
+	 */
+	private double getPercentile(int pos) {
+		if (Double.isNaN(percentiles[pos])) {
+			percentiles[pos] = getPercentile(index.getBidDetails(pos).getBid());
+		}
+		return percentiles[pos];
+	}
+	
+	/**
+	 * Returns the rank percentile of a bid, 
+	 * estimated from the nearest ranked bids if enabled,
+	 * or positive infinity if the bid is not ranked
+	 * 
+	 * @param bid
+	 * @return double
+	 */
+	private double getPercentile(Bid bid) {
+		if (null == rankIndex) {
+			return UNRANKED;
+		}
+		double percentile = rankIndex.getPercentile(bid);
+		if (percentile < 0 && null != rankTree) {
+			percentile = rankTree.getPercentile(bid);
+		}
+		return (percentile < 0) ? UNRANKED : percentile;
 	}
 
 	/**
@@ -237,6 +619,11 @@ public class Group9_BS extends OfferingStrategy {
 		set.add(new BOAparameter("n", 3.0, "Time divider"));
 		set.add(new BOAparameter("min", 0.8, "Minimum utility"));
 		set.add(new BOAparameter("max", 1.0, "Maximum utility"));
+		set.add(new BOAparameter("o", 200000.0, "Maximum number of outcomes to list and sort"));
+		set.add(new BOAparameter("b", 0.01, "Half width of the utility band on larger domains"));
+		set.add(new BOAparameter("c", 500.0, "Maximum number of bids taken from a utility band"));
+		set.add(new BOAparameter("r", 0.0, "1 to fit the utility space under uncertainty to the bid ranking"));
+		set.add(new BOAparameter("u", 0.0, "1 to estimate the rank of unranked bids from the nearest ranked bids"));
 
 		return set;
 	}
@@ -1,21 +1,23 @@
 package ai2018.group9;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import ai2018.common.BatchOpponentModel;
+import ai2018.common.BidCodec;
 import genius.core.Bid;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
-import genius.core.boaframework.OpponentModel;
 import genius.core.issue.Issue;
 import genius.core.issue.IssueDiscrete;
 import genius.core.issue.Objective;
-import genius.core.issue.Value;
 import genius.core.issue.ValueDiscrete;
+import genius.core.utility.AbstractUtilitySpace;
 import genius.core.utility.AdditiveUtilitySpace;
 import genius.core.utility.Evaluator;
 import genius.core.utility.EvaluatorDiscrete;
@@ -30,7 +32,7 @@ import genius.core.utility.EvaluatorDiscrete;
  * @author Group 9
  *
  */
-public class Group9_OM extends OpponentModel {
+public class Group9_OM extends BatchOpponentModel {
 
 	/*
 	 * the learning coefficient is the weight that is added each turn to the
@@ -46,6 +48,47 @@ public class Group9_OM extends OpponentModel {
 	private int amountOfIssues;
 	private double goldenValue;
 	private int bidsToCheck;
+	
+	/*
+	 * encodes the bids of the opponent, and holds the codes
+	 * of the last two of them. Null if the domain is not discrete, the
+	 * model then works on the opponent utility space directly.
+	 */
+	private BidCodec codec;
+	private int[] oppCode;
+	private int[] prevOppCode;
+	
+	/*
+	 * the number of opponent bids that have been encoded so far
+	 */
+	private int bidsSeen;
+	
+	/*
+	 * per issue: whether the last bid changed its value
+	 */
+	private int[] lastDiffSet;
+	
+	/*
+	 * The model itself, indexed like the issues of the codec: the issue
+	 * weights, and how often each value was offered. The table holds the
+	 * weighted normalized evaluation of each value and is only rebuilt
+	 * when the model changed. The opponent utility space is only brought
+	 * up to date when it is asked for.
+	 */
+	private double[] weights;
+	private int[][] valueCounts;
+	private double[][] evaluations;
+	private boolean tableDirty;
+	private boolean spaceDirty;
+	private int[] bidCode;
+	
+	/*
+	 * version of the model, raised by every update, and the summed change
+	 * of the evaluation table over all times it was rebuilt
+	 */
+	private long version;
+	private boolean tableBuilt;
+	private double cumulativeChange;
 
 	@Override
 	public void init(NegotiationSession negotiationSession, Map<String, Double> parameters) {
@@ -64,6 +107,14 @@ public class Group9_OM extends OpponentModel {
 		bidsToCheck = countMaxIssueValues(opponentUtilitySpace);
 
 		amountOfIssues = opponentUtilitySpace.getDomain().getIssues().size();
+		
+		codec = BidCodec.isDiscrete(opponentUtilitySpace.getDomain())
+				? BidCodec.forDomain(opponentUtilitySpace.getDomain()) : null;
+		oppCode = new int[amountOfIssues];
+		prevOppCode = new int[amountOfIssues];
+		bidCode = new int[amountOfIssues];
+		bidsSeen = 0;
+		lastDiffSet = new int[amountOfIssues];
 		/*
 		 * This is the value to be added to weights of unchanged issues before
 		 * normalization. Also the value that is taken as the minimum possible
@@ -76,37 +127,34 @@ public class Group9_OM extends OpponentModel {
 
 	@Override
 	public void updateModel(Bid opponentBid, double time) {
-		if (negotiationSession.getOpponentBidHistory().size() < 2) {
+		// Move the last two bids along with the opponent bid history
+		int historySize = negotiationSession.getOpponentBidHistory().size();
+		while (null != codec && bidsSeen < historySize) {
+			encodeOpponentBid(negotiationSession.getOpponentBidHistory()
+					.getHistory().get(bidsSeen++));
+		}
+		
+		if (historySize < 2) {
 			return;
 		}
 		int numberOfUnchanged = 0;
-		BidDetails oppBid = negotiationSession.getOpponentBidHistory()
-				.getHistory()
-				.get(negotiationSession.getOpponentBidHistory().size() - 1);
-		BidDetails prevOppBid = negotiationSession.getOpponentBidHistory()
-				.getHistory()
-				.get(negotiationSession.getOpponentBidHistory().size() - 2);
-		HashMap<Integer, Integer> lastDiffSet = determineDifference(prevOppBid,	oppBid);
-
-		// Get the last x bids the opponent made
-		BidDetails[] lastBids = getLastBids(bidsToCheck);
-		// Count how many distinct values have been bid for each issue in the last x bids
-		HashMap<Integer, Integer> distinctBidsPerIssue = CountValues(lastBids);
-		// HashMap to calculate how much to increment each issue according to last x bids
-		HashMap<Integer, Double> addToIssue = new HashMap<Integer, Double>();
-
 		double timeLeft = 1.0 - time;
+		
+		Bid oppBid = negotiationSession.getOpponentBidHistory().getHistory()
+				.get(historySize - 1).getBid();
+		if (null != codec) {
+			determineDifference(prevOppCode, oppCode);
+		} else {
+			determineDifference(negotiationSession.getOpponentBidHistory().getHistory()
+					.get(historySize - 2).getBid(), oppBid);
+		}
 
-		// count the number of changes in value
-		for (Integer i : lastDiffSet.keySet()) {
-			if (lastDiffSet.get(i) == 0) {
+		// count the number of unchanged issues. Changed issues are not 
+		// incremented, so the number of distinct values the opponent offered 
+		// for them does not matter.
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (lastDiffSet[k] == 0) {
 				numberOfUnchanged++;
-				// Issue unchanged, we don't want to increment more
-				addToIssue.put(i, 0.0);
-			} else {
-				// Issue i should be incremented by a value according to num distinct bids in last x bids
-				// Also have time factor since more importance is in the beginning
-				addToIssue.put(i, (1.0 - (double)(distinctBidsPerIssue.get(i))/amountOfIssues)*timeLeft);
 			}
 		}
 
@@ -118,40 +166,43 @@ public class Group9_OM extends OpponentModel {
 		// The maximum possible weight
 		double maximumWeight = 1D - (amountOfIssues) * addValue / totalSum;
 
-		// Re-weighing issues while making sure that the sum remains 1
-		for (Integer i : lastDiffSet.keySet()) {
-			Objective issue = opponentUtilitySpace.getDomain()
-					.getObjectivesRoot().getObjective(i);
-			double weight = opponentUtilitySpace.getWeight(i);
-			double newWeight;
-
-			if (lastDiffSet.get(i) == 0 && weight < maximumWeight) {
-				newWeight = (weight + addValue + addValue*addToIssue.get(i)) / totalSum;
+		// Re-weighing issues. An unchanged issue that is already at the 
+		// maximum weight does not get addValue, so the sum can drop below 1
+		double weightSum = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (lastDiffSet[k] == 0 && weights[k] < maximumWeight) {
+				weights[k] = (weights[k] + addValue) / totalSum;
 			} else {
-				newWeight = weight / totalSum;
+				weights[k] = weights[k] / totalSum;
 			}
-			opponentUtilitySpace.setWeight(issue, newWeight);
+			weightSum += weights[k];
+		}
+		
+		// Make sure that the sum remains 1
+		for (int k = 0; k < amountOfIssues; k++) {
+			weights[k] /= weightSum;
+		}
+
+		version++;
+		if (null == codec) {
+			updateUtilitySpace(oppBid);
+			return;
 		}
 
 		// Then for each issue value that has been offered last time, a constant
 		// value is added to its corresponding ValueDiscrete.
-		try {
-			for (Entry<Objective, Evaluator> e : opponentUtilitySpace
-					.getEvaluators()) {
-				EvaluatorDiscrete value = (EvaluatorDiscrete) e.getValue();
-				IssueDiscrete issue = ((IssueDiscrete) e.getKey());
-				/*
-				 * add constant learnValueAddition to the current preference of
-				 * the value to make it more important
-				 */
-				ValueDiscrete issuevalue = (ValueDiscrete) oppBid.getBid()
-						.getValue(issue.getNumber());
-				Integer eval = value.getEvaluationNotNormalized(issuevalue);
-				value.setEvaluation(issuevalue, (learnValueAddition + eval));
+		for (int k = 0; k < amountOfIssues; k++) {
+			/*
+			 * add constant learnValueAddition to the current preference of
+			 * the value to make it more important
+			 */
+			if (oppCode[k] >= 0) {
+				valueCounts[k][oppCode[k]] += learnValueAddition;
 			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
 		}
+		
+		tableDirty = true;
+		spaceDirty = true;
 	}
 	
 	
@@ -181,58 +232,189 @@ public class Group9_OM extends OpponentModel {
 	}
 
 	/**
-	 * Get last x bids opponent made
-	 * @param x
-	 * @return
+	 * Encodes the next bid of the opponent, keeping the code of the
+	 * bid before it
+	 * 
+	 * @param oppBid
 	 */
-	private BidDetails[]  getLastBids(Integer x) {
-		BidDetails[] bidDetails = new BidDetails[x];
-		int bidSize = negotiationSession.getOpponentBidHistory().size();
-		if(bidSize < x + 1) {
-			return new BidDetails[0];
+	private void encodeOpponentBid(BidDetails oppBid) {
+		int[] code = prevOppCode;
+		prevOppCode = oppCode;
+		oppCode = code;
+		codec.encode(oppBid.getBid(), oppCode);
+	}
+
+	@Override
+	public double getBidEvaluation(Bid bid) {
+		if (null == codec) {
+			double result = 0;
+			try {
+				result = opponentUtilitySpace.getUtility(bid);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return result;
 		}
-		for(int counter = 0; counter < x; counter++) {
-			BidDetails bidDetail = negotiationSession.getOpponentBidHistory()
-				.getHistory().get(bidSize - 1 - counter);
-			bidDetails[counter] = bidDetail;
+		codec.encode(bid, bidCode);
+		return getBidEvaluation(bidCode);
+	}
+	
+	/**
+	 * Returns the estimated opponent utility of an encoded bid
+	 * 
+	 * @param code
+	 * @return double
+	 */
+	public double getBidEvaluation(int[] code) {
+		if (tableDirty) {
+			updateEvaluations();
 		}
-		return bidDetails;
+		double result = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (code[k] >= 0) {
+				result += evaluations[k][code[k]];
+			}
+		}
+		return result;
 	}
-
+	
+	/**
+	 * Evaluates encoded bids in one pass over the evaluation table
+	 */
+	@Override
+	public void evaluateAll(BidCodec codec, long[] codes, int from, int to, double[] out) {
+		if (tableDirty) {
+			updateEvaluations();
+		}
+		for (int i = from; i < to; i++) {
+			long code = codes[i];
+			double result = 0;
+			for (int k = 0; k < amountOfIssues; k++) {
+				int values = codec.getValueCount(k);
+				result += evaluations[k][(int) (code % values)];
+				code /= values;
+			}
+			out[i - from] = result;
+		}
+	}
+	
+	/**
+	 * Builds the evaluation table, after which evaluating encoded bids
+	 * only reads it
+	 */
+	@Override
+	public boolean prepareConcurrentEvaluation() {
+		if (null == codec) {
+			return false;
+		}
+		if (tableDirty) {
+			updateEvaluations();
+		}
+		return true;
+	}
+	
+	/**
+	 * Brings the opponent utility space up to date with the model 
+	 * before handing it out
+	 */
+	@Override
+	public AbstractUtilitySpace getOpponentUtilitySpace() {
+		if (spaceDirty) {
+			updateUtilitySpace();
+		}
+		return opponentUtilitySpace;
+	}
+	
 	/**
-	 * Count number of distinct values per issue for each BidDetail
+	 * Renormalizes the value counts and weighs them by the issue weights,
+	 * like {@link EvaluatorDiscrete#getEvaluation(ValueDiscrete)} does
+	 */
+	private void updateEvaluations() {
+		double change = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			int max = 0;
+			for (int count : valueCounts[k]) {
+				max = Math.max(max, count);
+			}
+			double maxChange = 0;
+			for (int v = 0; v < valueCounts[k].length; v++) {
+				double evaluation = (max > 0) ? weights[k] * valueCounts[k][v] / max : 0;
+				maxChange = Math.max(maxChange, Math.abs(evaluation - evaluations[k][v]));
+				evaluations[k][v] = evaluation;
+			}
+			change += maxChange;
+		}
+		if (tableBuilt) {
+			cumulativeChange += change;
+		}
+		tableBuilt = true;
+		tableDirty = false;
+	}
+	
+	/**
+	 * Returns the version of the model, which is raised by every update
 	 * 
-	 * @param bidDetails
-	 * @return
+	 * @return long
 	 */
-	private HashMap<Integer, Integer> CountValues(BidDetails[] bidDetails) {
-		
-		HashMap<Integer, Integer> count = new HashMap<Integer, Integer>();
-		
-		try {	
-			for (Issue i : opponentUtilitySpace.getDomain().getIssues()) {
-				Set<String> issueSet = new HashSet<String>();
-				for(int counter = 0; counter < bidDetails.length; counter++) {
-					Value val = bidDetails[counter].getBid().getValue(i.getNumber());
-					issueSet.add(val.toString());
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Returns the summed change of the model. The evaluation of any bid
+	 * changed by at most the difference between this value now and at an
+	 * earlier version, since an issue adds at most the largest change of
+	 * one of its values. Without the table every update counts as the 
+	 * largest possible change, 1.
+	 * 
+	 * @return double
+	 */
+	public double getCumulativeChange() {
+		if (tableDirty) {
+			updateEvaluations();
+		}
+		return cumulativeChange;
+	}
+	
+	/**
+	 * Without codec, writes the weights into the opponent utility space and 
+	 * adds learnValueAddition to the discrete values of the opponent bid
+	 * 
+	 * @param oppBid
+	 */
+	private void updateUtilitySpace(Bid oppBid) {
+		List<Issue> issues = opponentUtilitySpace.getDomain().getIssues();
+		for (int k = 0; k < amountOfIssues; k++) {
+			Evaluator evaluator = opponentUtilitySpace.getEvaluator(issues.get(k));
+			// set on the evaluator, the utility space would renormalize all weights
+			evaluator.setWeight(weights[k]);
+			if (evaluator instanceof EvaluatorDiscrete) {
+				try {
+					ValueDiscrete value = (ValueDiscrete) oppBid.getValue(issues.get(k).getNumber());
+					EvaluatorDiscrete discrete = (EvaluatorDiscrete) evaluator;
+					discrete.setEvaluation(value, 
+							learnValueAddition + discrete.getEvaluationNotNormalized(value));
+				} catch (Exception ex) {
+					ex.printStackTrace();
 				}
-				count.put(i.getNumber(), issueSet.size());
 			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
 		}
-		return count;
+		cumulativeChange += 1;
 	}
-
-	@Override
-	public double getBidEvaluation(Bid bid) {
-		double result = 0;
-		try {
-			result = opponentUtilitySpace.getUtility(bid);
-		} catch (Exception e) {
-			e.printStackTrace();
+	
+	/**
+	 * Writes the weights and value counts into the opponent utility space
+	 */
+	private void updateUtilitySpace() {
+		for (int k = 0; k < amountOfIssues; k++) {
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) opponentUtilitySpace
+					.getEvaluator(codec.getIssue(k));
+			evaluator.setWeight(weights[k]);
+			for (int v = 0; v < valueCounts[k].length; v++) {
+				evaluator.setEvaluation(codec.getValue(k, v), valueCounts[k][v]);
+			}
 		}
-		return result;
+		spaceDirty = false;
 	}
 
 	public double getLearnCoef() {
@@ -276,33 +458,54 @@ public class Group9_OM extends OpponentModel {
 				ex.printStackTrace();
 			}
 		}
+		
+		weights = new double[amountOfIssues];
+		Arrays.fill(weights, commonWeight);
+		version = 0;
+		tableBuilt = false;
+		cumulativeChange = 0;
+		spaceDirty = false;
+		if (null == codec) {
+			tableDirty = false;
+			return;
+		}
+		
+		valueCounts = new int[amountOfIssues][];
+		evaluations = new double[amountOfIssues][];
+		for (int k = 0; k < amountOfIssues; k++) {
+			valueCounts[k] = new int[codec.getValueCount(k)];
+			evaluations[k] = new double[codec.getValueCount(k)];
+			Arrays.fill(valueCounts[k], 1);
+		}
+		tableDirty = true;
 	}
 
 	/**
-	 * Determines the difference between bids. For each issue, it is determined
-	 * if the value changed. If this is the case, a 1 is stored in a hashmap for
-	 * that issue, else a 0.
+	 * Determines the difference between encoded bids. For each issue, it is
+	 * determined if the value changed. If this is the case, a 1 is stored in
+	 * lastDiffSet for that issue, else a 0.
 	 * 
 	 * @param first
 	 * @param second
-	 * 
-	 * @return HashMap<Integer, Integer>
 	 */
-	private HashMap<Integer, Integer> determineDifference(BidDetails first,
-			BidDetails second) {
-
-		HashMap<Integer, Integer> diff = new HashMap<Integer, Integer>();
-		try {
-			for (Issue i : opponentUtilitySpace.getDomain().getIssues()) {
-				Value value1 = first.getBid().getValue(i.getNumber());
-				Value value2 = second.getBid().getValue(i.getNumber());
-				diff.put(i.getNumber(), (value1.equals(value2)) ? 0 : 1);
-			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
+	private void determineDifference(int[] first, int[] second) {
+		for (int k = 0; k < amountOfIssues; k++) {
+			lastDiffSet[k] = (first[k] == second[k]) ? 0 : 1;
 		}
+	}
 
-		return diff;
+	/**
+	 * Determines the difference between bids that can not be encoded
+	 * 
+	 * @param first
+	 * @param second
+	 */
+	private void determineDifference(Bid first, Bid second) {
+		List<Issue> issues = opponentUtilitySpace.getDomain().getIssues();
+		for (int k = 0; k < amountOfIssues; k++) {
+			int number = issues.get(k).getNumber();
+			lastDiffSet[k] = first.getValue(number).equals(second.getValue(number)) ? 0 : 1;
+		}
 	}
 
 	@Override
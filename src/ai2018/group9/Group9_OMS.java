@@ -1,18 +1,25 @@
 package ai2018.group9;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+import ai2018.common.BatchOpponentModel;
+import ai2018.common.BidCodec;
+import ai2018.common.SessionRandom;
+import ai2018.common.UtilityBucketIndex;
+import genius.core.Bid;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
 import genius.core.boaframework.OMStrategy;
 import genius.core.boaframework.OpponentModel;
 import genius.core.issue.Issue;
-import genius.core.issue.Value;
 
 /**
  * This class uses an opponent model to determine the next bid for the opponent,
@@ -34,6 +41,86 @@ public class Group9_OMS extends OMStrategy {
 	 * Used to get a best bid
 	 */
 	double weightHammingDist;
+	
+	/**
+	 * encodes candidate bids, with scratch arrays for the codes of
+	 * the candidate and of the last opponent bid. Null if the domain
+	 * is not discrete, then the values of the bids are compared.
+	 */
+	private BidCodec codec;
+	private int[] bidCode;
+	private int[] oppCode;
+	
+	/**
+	 * The utility of a bid is based on its evaluation and on the Hamming
+	 * distance between the bid and the last opponent bid, which is how many
+	 * different values among all issues between them: <br>
+	 * (w * (1 - distance / #issues) + evaluation) / (w + 1) <br>
+	 * The first term is precomputed for each distance.
+	 */
+	private double[] hammingUtil;
+	
+	/**
+	 * evaluations of the candidate bids, grown as needed
+	 */
+	private double[] evaluations = new double[0];
+	
+	/**
+	 * picks a bid when the opponent model does not work
+	 */
+	private Random random;
+	
+	/**
+	 * The last scored window of an index, with the position of its best bid,
+	 * the best and second best utility, the best evaluation, and the
+	 * opponent model and last opponent bid it was scored with. While the
+	 * utilities can not have changed by enough to reorder the best two, the
+	 * best bid is returned without scoring the window again.
+	 */
+	private UtilityBucketIndex cachedIndex;
+	private int cachedFrom;
+	private int cachedTo;
+	private int cachedBest;
+	private double cachedBestUtil;
+	private double cachedSecondUtil;
+	private double cachedMaxEvaluation;
+	private long cachedVersion;
+	private double cachedChange;
+	private boolean cachedHasOpp;
+	private long cachedOppPacked;
+	
+	/**
+	 * Windows of at least this many bids are scored by Hamming distance to
+	 * the last opponent bid, best distance first, with scratch arrays for
+	 * the buckets and the result
+	 */
+	private static final int MIN_BUCKETED_SIZE = 64;
+	private int[] bucketStart;
+	private int[] bucketFill;
+	private int[] distances = new int[0];
+	private int[] sortedPositions = new int[0];
+	private long[] sortedCodes = new long[0];
+	private int scoredBest;
+	private double scoredBestUtil;
+	private double scoredSecondUtil;
+	private double scoredMaxEvaluation;
+	
+	/**
+	 * Windows of at least this many bids are scored in chunks on the common
+	 * fork-join pool, if the opponent model can be evaluated concurrently
+	 */
+	private int parallelSize;
+	private static final int CHUNK_SIZE = 4096;
+	
+	/**
+	 * Upper bound of the evaluation of a bid by the opponent model
+	 */
+	private static final double MAX_EVALUATION = 1;
+	
+	/**
+	 * Margin for rounding errors in the bound on the change of a utility
+	 */
+	private static final double ROUNDING_MARGIN = 1e-12;
 
 	/**
 	 * Initializes the opponent model strategy. If a value for a parameter
@@ -63,6 +150,32 @@ public class Group9_OMS extends OMStrategy {
 		} else {
 			weightHammingDist = 2;
 		}
+		
+		if (null != parameters.get("p")) {
+			parallelSize = parameters.get("p").intValue();
+		} else {
+			parallelSize = 50000;
+		}
+		
+		random = SessionRandom.forSession(negotiationSession, parameters);
+		cachedIndex = null;
+		int amountOfIssues = negotiationSession.getDomain().getIssues().size();
+		if (BidCodec.isDiscrete(negotiationSession.getDomain())) {
+			codec = BidCodec.forDomain(negotiationSession.getDomain());
+			bidCode = new int[amountOfIssues];
+			oppCode = new int[amountOfIssues];
+		} else {
+			codec = null;
+		}
+		
+		// Hamming part of the utility of a bid for each possible distance
+		hammingUtil = new double[amountOfIssues + 1];
+		for (int diff = 0; diff <= amountOfIssues; diff++) {
+			double hammingDist = (double)diff / amountOfIssues;
+			hammingUtil[diff] = weightHammingDist * (1 - hammingDist);
+		}
+		bucketStart = new int[amountOfIssues + 2];
+		bucketFill = new int[amountOfIssues + 1];
 	}
 
 	/**
@@ -88,40 +201,342 @@ public class Group9_OMS extends OMStrategy {
 		double bestUtil = -1;
 		BidDetails bestBid = allBids.get(0);
 		
-		int amountOfIssues = model.getOpponentUtilitySpace().getDomain().getIssues().size();
 		BidDetails oppBid = null;
+		long oppPacked = 0;
 		
 		if (negotiationSession.getOpponentBidHistory().size() > 0) {
 			oppBid = negotiationSession.getOpponentBidHistory()
 					.getHistory()
 					.get(negotiationSession.getOpponentBidHistory().size() - 1);
+			// the opponent bid is compared to every candidate, encode it once
+			if (null != codec) {
+				codec.encode(oppBid.getBid(), oppCode);
+				oppPacked = codec.isPackable() ? codec.pack(oppCode) : 0;
+			}
+		}
+		
+		// Compare packed codes if the candidates come from an index that has them
+		long[] packedCodes = null;
+		UtilityBucketIndex.Window window = null;
+		if (null != codec && codec.isPackable() && allBids instanceof UtilityBucketIndex.Window) {
+			window = (UtilityBucketIndex.Window) allBids;
+			packedCodes = window.getIndex().getPackedCodes();
+		}
+		
+		// The same window as last time, reuse its best bid if still the best
+		Group9_OM versioned = (null != window && model instanceof Group9_OM) ? (Group9_OM) model : null;
+		if (null != versioned && isCachedBest(window, versioned, null != oppBid, oppPacked)) {
+			return allBids.get(cachedBest);
 		}
 		
 		// 2. Check that not all bids are assigned at utility of 0
 		// to ensure that the opponent model works. If the opponent model
 		// does not work, offer a random bid.
 		boolean allWereZero = true;
+		int best = 0;
+		double secondUtil = -1;
+		double maxEvaluation = 0;
 		
-		// 3. Determine the best bid
-		for (BidDetails bid : allBids) {
-			double evaluation = model.getBidEvaluation(bid.getBid());
-			double utility = calcHammingDistUtil(bid, oppBid, amountOfIssues, evaluation);
+		// 3. Determine the best bid, evaluating all bids in one batch,
+		// or on large windows only the bids that are close enough to the opponent bid
+		if (evaluations.length < allBids.size()) {
+			evaluations = new double[allBids.size()];
+		}
+		if (null != packedCodes && parallelSize > 0 && allBids.size() >= parallelSize
+				&& window.getIndex().hasCodes() && model instanceof BatchOpponentModel
+				&& ((BatchOpponentModel) model).prepareConcurrentEvaluation()) {
+			Score score = ForkJoinPool.commonPool().invoke(new ScoreTask(window.getIndex(), 
+					window.getFrom(), window.getTo(), null != oppBid, oppPacked));
+			best = window.getTo() - 1 - score.best;
+			bestBid = allBids.get(best);
+			bestUtil = score.bestUtil;
+			secondUtil = score.secondUtil;
+			maxEvaluation = score.maxEvaluation;
+			allWereZero = maxEvaluation <= 0.0001;
+		} else if (null != packedCodes && null != oppBid && weightHammingDist > 0
+				&& allBids.size() >= MIN_BUCKETED_SIZE) {
+			scoreByDistance(window, oppPacked);
+			best = scoredBest;
+			bestBid = allBids.get(best);
+			bestUtil = scoredBestUtil;
+			secondUtil = scoredSecondUtil;
+			maxEvaluation = scoredMaxEvaluation;
+			allWereZero = maxEvaluation <= 0.0001;
+		} else {
+			BatchOpponentModel.evaluateAll(model, allBids, evaluations);
+			for (int i = 0; i < allBids.size(); i++) {
+				double evaluation = evaluations[i];
+				double utility = evaluation;
 			
-			if (evaluation > 0.0001) {
-				allWereZero = false;
-			}
-			if (utility > bestUtil) {
-				bestBid = bid;
-				bestUtil = utility;
+				// If an opponent bid is given, weigh in the Hamming distance
+				if (null != oppBid) {
+					int diff;
+					if (null != packedCodes) {
+						diff = codec.hammingDistance(packedCodes[window.getPosition(i)], oppPacked);
+					} else if (null != codec) {
+						codec.encode(allBids.get(i).getBid(), bidCode);
+						diff = BidCodec.hammingDistance(bidCode, oppCode);
+					} else {
+						diff = hammingDistance(allBids.get(i).getBid(), oppBid.getBid());
+					}
+					utility = (hammingUtil[diff] + evaluation) / (weightHammingDist + 1);
+				}
+			
+				if (evaluation > 0.0001) {
+					allWereZero = false;
+				}
+				maxEvaluation = Math.max(maxEvaluation, evaluation);
+				if (utility > bestUtil) {
+					bestBid = allBids.get(i);
+					secondUtil = bestUtil;
+					bestUtil = utility;
+					best = i;
+				} else if (utility > secondUtil) {
+					secondUtil = utility;
+				}
 			}
 		}
 		// 4. The opponent model did not work, therefore, offer a random bid.
 		if (allWereZero) {
-			Random r = new Random();
-			return allBids.get(r.nextInt(allBids.size()));
+			cachedIndex = null;
+			return allBids.get(random.nextInt(allBids.size()));
+		}
+		
+		if (null != versioned) {
+			cachedIndex = window.getIndex();
+			cachedFrom = window.getFrom();
+			cachedTo = window.getTo();
+			cachedBest = best;
+			cachedBestUtil = bestUtil;
+			cachedSecondUtil = secondUtil;
+			cachedMaxEvaluation = maxEvaluation;
+			cachedVersion = versioned.getVersion();
+			cachedChange = versioned.getCumulativeChange();
+			cachedHasOpp = null != oppBid;
+			cachedOppPacked = oppPacked;
 		}
 		return bestBid;
 	}
+	
+	/**
+	 * Counts the issues on which two bids have different values, 
+	 * for domains that can not be encoded
+	 * 
+	 * @param first
+	 * @param second
+	 * @return int
+	 */
+	private int hammingDistance(Bid first, Bid second) {
+		int diff = 0;
+		for (Issue issue : negotiationSession.getDomain().getIssues()) {
+			if (!first.getValue(issue.getNumber()).equals(second.getValue(issue.getNumber()))) {
+				diff++;
+			}
+		}
+		return diff;
+	}
+	
+	/**
+	 * Scores a window by Hamming distance to the last opponent bid. The
+	 * bids are bucketed by distance, and the buckets are visited from the
+	 * smallest distance up. Since an evaluation is at most 1, the utility of
+	 * a bucket is at most (w * (1 - distance / #issues) + 1) / (w + 1), and
+	 * the search stops at the first bucket that can not beat the best bid.
+	 * Ties go to the first bid in the window, the one with the highest
+	 * utility, like in a full scan. Sets
+	 * scoredBest, scoredBestUtil, scoredSecondUtil, an upper bound of the
+	 * second best utility, and scoredMaxEvaluation, of the visited bids.
+	 * 
+	 * @param window
+	 * @param oppPacked
+	 */
+	private void scoreByDistance(UtilityBucketIndex.Window window, long oppPacked) {
+		int size = window.size();
+		UtilityBucketIndex index = window.getIndex();
+		long[] packedCodes = index.getPackedCodes();
+		boolean batch = model instanceof BatchOpponentModel && index.hasCodes();
+		if (sortedPositions.length < size) {
+			distances = new int[size];
+			sortedPositions = new int[size];
+			sortedCodes = new long[size];
+		}
+		
+		// 1. Sort the bids into buckets by distance, keeping their order
+		Arrays.fill(bucketStart, 0);
+		for (int i = 0; i < size; i++) {
+			distances[i] = codec.hammingDistance(packedCodes[window.getPosition(i)], oppPacked);
+			bucketStart[distances[i] + 1]++;
+		}
+		for (int d = 0; d < bucketFill.length; d++) {
+			bucketStart[d + 1] += bucketStart[d];
+			bucketFill[d] = bucketStart[d];
+		}
+		for (int i = 0; i < size; i++) {
+			int slot = bucketFill[distances[i]]++;
+			sortedPositions[slot] = i;
+			if (batch) {
+				sortedCodes[slot] = index.getCode(window.getPosition(i));
+			}
+		}
+		
+		// 2. Score the buckets, best distance first
+		scoredBest = 0;
+		scoredBestUtil = -1;
+		scoredSecondUtil = -1;
+		scoredMaxEvaluation = 0;
+		for (int d = 0; d < bucketFill.length; d++) {
+			int start = bucketStart[d];
+			int end = bucketStart[d + 1];
+			if (start == end) {
+				continue;
+			}
+			// Only stop once the opponent model is known to work
+			double bound = (hammingUtil[d] + MAX_EVALUATION) / (weightHammingDist + 1);
+			if (scoredMaxEvaluation > 0.0001 && bound < scoredBestUtil) {
+				scoredSecondUtil = Math.max(scoredSecondUtil, bound);
+				return;
+			}
+			
+			if (batch) {
+				((BatchOpponentModel) model).evaluateAll(index.getCodec(), sortedCodes, start, end, evaluations);
+			} else {
+				for (int slot = start; slot < end; slot++) {
+					evaluations[slot - start] = model.getBidEvaluation(window.get(sortedPositions[slot]).getBid());
+				}
+			}
+			for (int slot = start; slot < end; slot++) {
+				int i = sortedPositions[slot];
+				double evaluation = evaluations[slot - start];
+				double utility = (hammingUtil[d] + evaluation) / (weightHammingDist + 1);
+				
+				scoredMaxEvaluation = Math.max(scoredMaxEvaluation, evaluation);
+				if (utility > scoredBestUtil) {
+					scoredSecondUtil = scoredBestUtil;
+					scoredBestUtil = utility;
+					scoredBest = i;
+				} else {
+					if (utility == scoredBestUtil && i < scoredBest) {
+						scoredBest = i;
+					}
+					scoredSecondUtil = Math.max(scoredSecondUtil, utility);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Best bid of a part of a window, by its position in the index, with the
+	 * second best utility and the best evaluation
+	 */
+	private static class Score {
+		int best;
+		double bestUtil = -1;
+		double secondUtil = -1;
+		double maxEvaluation;
+	}
+	
+	/**
+	 * Scores a part of a window of an index, splitting it until the parts
+	 * are small enough. Each part is scanned from its highest position down
+	 * and the best bids of two parts are merged in favour of the higher
+	 * part, so ties go to the bid with the highest utility like in a full
+	 * scan of the window, and the result does not depend on how the work
+	 * was scheduled.
+	 */
+	private class ScoreTask extends RecursiveTask<Score> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final UtilityBucketIndex index;
+		private final int from;
+		private final int to;
+		private final boolean hasOpp;
+		private final long oppPacked;
+		
+		ScoreTask(UtilityBucketIndex index, int from, int to, boolean hasOpp, long oppPacked) {
+			this.index = index;
+			this.from = from;
+			this.to = to;
+			this.hasOpp = hasOpp;
+			this.oppPacked = oppPacked;
+		}
+		
+		@Override
+		protected Score compute() {
+			if (to - from <= CHUNK_SIZE) {
+				double[] chunkEvaluations = new double[to - from];
+				((BatchOpponentModel) model).evaluateAll(index.getCodec(), index.getCodes(), 
+						from, to, chunkEvaluations);
+				long[] packedCodes = index.getPackedCodes();
+				Score score = new Score();
+				for (int pos = to - 1; pos >= from; pos--) {
+					double evaluation = chunkEvaluations[pos - from];
+					double utility = evaluation;
+					if (hasOpp) {
+						int diff = codec.hammingDistance(packedCodes[pos], oppPacked);
+						utility = (hammingUtil[diff] + evaluation) / (weightHammingDist + 1);
+					}
+					score.maxEvaluation = Math.max(score.maxEvaluation, evaluation);
+					if (utility > score.bestUtil) {
+						score.secondUtil = score.bestUtil;
+						score.bestUtil = utility;
+						score.best = pos;
+					} else if (utility > score.secondUtil) {
+						score.secondUtil = utility;
+					}
+				}
+				return score;
+			}
+			int mid = (from + to) >>> 1;
+			ScoreTask left = new ScoreTask(index, from, mid, hasOpp, oppPacked);
+			ScoreTask right = new ScoreTask(index, mid, to, hasOpp, oppPacked);
+			left.fork();
+			Score second = right.compute();
+			Score first = left.join();
+			
+			Score score = (first.bestUtil > second.bestUtil) ? first : second;
+			Score other = (score == first) ? second : first;
+			score.secondUtil = Math.max(score.secondUtil, other.bestUtil);
+			score.maxEvaluation = Math.max(score.maxEvaluation, other.maxEvaluation);
+			return score;
+		}
+	}
+	
+	/**
+	 * Determines whether the best bid of the last scored window is still
+	 * the best. The evaluation of a bid changed by at most the change of the
+	 * opponent model since, and its Hamming distance to the last opponent
+	 * bid by at most the distance between the old and new opponent bid.
+	 * 
+	 * @param window
+	 * @param versioned
+	 * @param hasOpp
+	 * @param oppPacked
+	 * @return true if the best bid can not have changed
+	 */
+	private boolean isCachedBest(UtilityBucketIndex.Window window, Group9_OM versioned,
+			boolean hasOpp, long oppPacked) {
+		if (window.getIndex() != cachedIndex || window.getFrom() != cachedFrom
+				|| window.getTo() != cachedTo || hasOpp != cachedHasOpp) {
+			return false;
+		}
+		if (versioned.getVersion() == cachedVersion && oppPacked == cachedOppPacked) {
+			return true;
+		}
+		
+		double evaluationChange = versioned.getCumulativeChange() - cachedChange;
+		// the opponent model might no longer work
+		if (cachedMaxEvaluation - evaluationChange <= 0.0001) {
+			return false;
+		}
+		double utilityChange = evaluationChange;
+		if (hasOpp) {
+			int oppDiff = codec.hammingDistance(oppPacked, cachedOppPacked);
+			utilityChange = (evaluationChange + weightHammingDist * oppDiff / codec.getIssueCount())
+					/ (weightHammingDist + 1);
+		}
+		return cachedBestUtil - cachedSecondUtil > 2 * utilityChange + ROUNDING_MARGIN;
+	}
 
 	/**
 	 * The opponent model may be updated, unless the time is higher than a given
@@ -139,6 +554,9 @@ public class Group9_OMS extends OMStrategy {
 		Set<BOAparameter> set = new HashSet<BOAparameter>();
 		set.add(new BOAparameter("t", 1.1, "Time after which the OM should not be updated"));
 		set.add(new BOAparameter("w", 2.0, "Weight of Hamming Distance in deciding the best bid"));
+		set.add(new BOAparameter("seed", -1.0, "Seed of the session, negative for a new seed every session"));
+		set.add(new BOAparameter("rng", 0.0, "1 to record the seed and random draws of the session"));
+		set.add(new BOAparameter("p", 50000.0, "Windows with at least this many bids are scored in parallel, 0 for never"));
 		return set;
 	}
 
@@ -146,45 +564,4 @@ public class Group9_OMS extends OMStrategy {
 	public String getName() {
 		return "Group 9 Opponent Model Strategy";
 	}
-	
-	/**
-	 * calculate the utility of a bid
-	 * based on evaluation value and Hamming Distance between bid1 and oppBid,
-	 * which is how many different values among all issues between them
-	 * 
-	 * @param bid1
-	 * @param oppBid
-	 * @param amountOfIssues
-	 * @param evaluation
-	 * 			bid evaluation
-	 * @return
-	 */
-	private double calcHammingDistUtil(BidDetails bid1, BidDetails oppBid, 
-					int amountOfIssues, double evaluation) {
-		
-		// If no opponent bid given, return the evaluation value
-		if (null == oppBid) {
-			return evaluation;
-		}
-		
-		int diff = 0;
-		
-		// 1. calculate how many different values between two bids
-		for (Issue i : model.getOpponentUtilitySpace().getDomain().getIssues()) {
-			Value v1 = bid1.getBid().getValue(i.getNumber());
-			Value v2 = oppBid.getBid().getValue(i.getNumber());
-			if (!v1.equals(v2)) {
-				diff++;
-			}
-		}
-		
-		// 2. normalize HammingDistance
-		double hammingDist =  (double)diff / amountOfIssues;
-		
-		// 3. calculate utility
-		double utility = (weightHammingDist * (1 -hammingDist) + evaluation)
-				/ (weightHammingDist + 1);
-		
-		return utility;
-	}
-}
\ No newline at end of file
+}
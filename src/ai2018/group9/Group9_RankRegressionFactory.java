@@ -0,0 +1,416 @@
+package ai2018.group9;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ai2018.common.BidCodec;
+import genius.core.Bid;
+import genius.core.Domain;
+import genius.core.uncertainty.BidRanking;
+import genius.core.utility.AdditiveUtilitySpace;
+import genius.core.utility.EvaluatorDiscrete;
+
+/**
+ * This class estimates the utility space given uncertainty profile by
+ * fitting it to the bid ranking with least squares. <br><br>
+ *
+ * Every value of every issue gets a parameter, and the utility of a bid is
+ * the sum of the parameters of its values. Each pair of adjacent bids in the
+ * ranking asks the higher bid to be a fixed step better than the lower one,
+ * and the lowest and highest bid are anchored at the utilities given by the
+ * ranking. These constraints are streamed into the normal equations, with a
+ * small ridge term, and solved by a preconditioned conjugate gradient for a
+ * bounded number of iterations, so that the same ranking always gives the
+ * same estimate. A time budget only stops solvers that take far too long.
+ * On domains with many values the normal matrix is not stored,
+ * and the constraints are streamed again for every iteration instead, so
+ * memory never depends on the size of the ranking. <br><br>
+ *
+ * The parameters of each issue are then scaled into evaluations in [0, 1],
+ * and the issue weights are taken proportional to their ranges.
+ *
+ * @author Group 9
+ */
+public class Group9_RankRegressionFactory implements UtilitySpaceEstimator {
+
+	/**
+	 * Default ridge term, relative to the average diagonal of the normal matrix
+	 */
+	public static final double DEFAULT_RIDGE = 1e-3;
+
+	/**
+	 * Default maximum number of iterations of the solver
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 200;
+	
+	/**
+	 * Default time budget of the solver in milliseconds, a safety stop that
+	 * makes the estimate depend on the speed of the machine once it is hit
+	 */
+	public static final long DEFAULT_TIME_BUDGET = 10000;
+
+	/**
+	 * Domains with more values than this do not store the normal matrix
+	 */
+	private static final int MAX_DENSE_SIZE = 1024;
+
+	/**
+	 * Relative residual at which the solver stops
+	 */
+	private static final double TOLERANCE = 1e-10;
+
+	private AdditiveUtilitySpace u;
+
+	/**
+	 * encodes the bids of the ranking, with the codes of the last two bids
+	 */
+	private BidCodec codec;
+	private int[] code;
+	private int[] prevCode;
+	private int amountOfIssues;
+
+	/**
+	 * index of the parameter of the first value of each issue,
+	 * and the number of parameters
+	 */
+	private int[] offset;
+	private int size;
+
+	private double ridge = DEFAULT_RIDGE;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private long timeBudget = DEFAULT_TIME_BUDGET;
+
+	/**
+	 * the constraints, with the utility step between adjacent bids and the
+	 * utilities of the lowest and highest bid
+	 */
+	private List<Bid> bidOrder;
+	private double step;
+	private double low;
+	private double high;
+
+	/**
+	 * the nonzero entries of the current constraint
+	 */
+	private int[] columns;
+	private double[] signs;
+
+	/**
+	 * normal equations, the matrix is null if it is not stored
+	 */
+	private double[] normalMatrix;
+	private double[] rhs;
+	private double[] diagonal;
+	private double lambda;
+
+	/**
+	 * solver state
+	 */
+	private double[] x;
+	private double[] r;
+	private double[] z;
+	private double[] p;
+	private double[] q;
+
+	public Group9_RankRegressionFactory(Domain domain) {
+		u = Group9_UtilitySpaceFactory.createUtilitySpace(domain);
+		codec = BidCodec.forDomain(domain);
+		amountOfIssues = codec.getIssueCount();
+		code = new int[amountOfIssues];
+		prevCode = new int[amountOfIssues];
+
+		offset = new int[amountOfIssues];
+		size = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			offset[k] = size;
+			size += codec.getValueCount(k);
+		}
+
+		columns = new int[2 * amountOfIssues];
+		signs = new double[2 * amountOfIssues];
+		normalMatrix = (size <= MAX_DENSE_SIZE) ? new double[size * size] : null;
+		rhs = new double[size];
+		diagonal = new double[size];
+		x = new double[size];
+		r = new double[size];
+		z = new double[size];
+		p = new double[size];
+		q = new double[size];
+	}
+
+	/**
+	 * Estimates the utility space given bid ranking which contains
+	 * bids from low to high utility
+	 *
+	 * @param ranking
+	 */
+	@Override
+	public void estimateUsingBidRanks(BidRanking ranking) {
+		bidOrder = ranking.getBidOrder();
+		if (bidOrder.isEmpty() || 0 == size) {
+			return;
+		}
+		low = ranking.getLowUtility();
+		high = ranking.getHighUtility();
+		step = (bidOrder.size() > 1) ? (high - low) / (bidOrder.size() - 1) : 0;
+
+		// 1. build the normal equations in one pass over the ranking
+		if (null != normalMatrix) {
+			Arrays.fill(normalMatrix, 0);
+		}
+		Arrays.fill(rhs, 0);
+		Arrays.fill(diagonal, 0);
+		streamConstraints(null, null);
+
+		double trace = 0;
+		for (int c = 0; c < size; c++) {
+			trace += diagonal[c];
+		}
+		lambda = ridge * ((trace > 0) ? trace / size : 1);
+
+		// 2. solve them
+		solve();
+
+		// 3. turn the parameters into weights and evaluations
+		updateUtilitySpace();
+	}
+
+	/**
+	 * Walks over all constraints of the ranking. If in is null, they are
+	 * added to the normal equations. Otherwise the product of the constraint
+	 * matrix with its transpose and in is added to out.
+	 *
+	 * @param in
+	 * @param out
+	 */
+	private void streamConstraints(double[] in, double[] out) {
+		codec.encode(bidOrder.get(0), prevCode);
+		applyConstraint(anchor(prevCode), low, in, out);
+		for (int i = 1; i < bidOrder.size(); i++) {
+			codec.encode(bidOrder.get(i), code);
+			applyConstraint(difference(prevCode, code), step, in, out);
+
+			int[] swap = prevCode;
+			prevCode = code;
+			code = swap;
+		}
+		applyConstraint(anchor(prevCode), high, in, out);
+	}
+
+	/**
+	 * Sets the constraint that the utility of a bid equals a target
+	 *
+	 * @param bidCode
+	 * @return number of nonzero entries
+	 */
+	private int anchor(int[] bidCode) {
+		int m = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (bidCode[k] >= 0) {
+				columns[m] = offset[k] + bidCode[k];
+				signs[m++] = 1;
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Sets the constraint that a bid is a target better than the bid
+	 * ranked just below it. Values they share cancel out.
+	 *
+	 * @param lower
+	 * @param higher
+	 * @return number of nonzero entries
+	 */
+	private int difference(int[] lower, int[] higher) {
+		int m = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (lower[k] == higher[k]) {
+				continue;
+			}
+			if (higher[k] >= 0) {
+				columns[m] = offset[k] + higher[k];
+				signs[m++] = 1;
+			}
+			if (lower[k] >= 0) {
+				columns[m] = offset[k] + lower[k];
+				signs[m++] = -1;
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Adds the current constraint to the normal equations, or its part
+	 * of the product with in to out
+	 *
+	 * @param m
+	 *            number of nonzero entries of the constraint
+	 * @param target
+	 * @param in
+	 * @param out
+	 */
+	private void applyConstraint(int m, double target, double[] in, double[] out) {
+		if (null == in) {
+			for (int a = 0; a < m; a++) {
+				rhs[columns[a]] += signs[a] * target;
+				diagonal[columns[a]] += signs[a] * signs[a];
+				for (int b = 0; null != normalMatrix && b < m; b++) {
+					normalMatrix[columns[a] * size + columns[b]] += signs[a] * signs[b];
+				}
+			}
+			return;
+		}
+
+		double dot = 0;
+		for (int a = 0; a < m; a++) {
+			dot += signs[a] * in[columns[a]];
+		}
+		for (int a = 0; a < m; a++) {
+			out[columns[a]] += signs[a] * dot;
+		}
+	}
+
+	/**
+	 * Writes the product of the regularized normal matrix and in into out
+	 *
+	 * @param in
+	 * @param out
+	 */
+	private void multiply(double[] in, double[] out) {
+		if (null != normalMatrix) {
+			for (int c = 0; c < size; c++) {
+				double sum = 0;
+				int row = c * size;
+				for (int d = 0; d < size; d++) {
+					sum += normalMatrix[row + d] * in[d];
+				}
+				out[c] = sum;
+			}
+		} else {
+			Arrays.fill(out, 0);
+			streamConstraints(in, out);
+		}
+		for (int c = 0; c < size; c++) {
+			out[c] += lambda * in[c];
+		}
+	}
+
+	/**
+	 * Solves the normal equations with a conjugate gradient, preconditioned
+	 * by their diagonal, until the residual is small enough, every direction
+	 * has been searched twice, or the maximum number of iterations is
+	 * reached. The time budget is only checked as a safety stop.
+	 */
+	private void solve() {
+		long deadline = System.nanoTime() + timeBudget * 1000000L;
+
+		Arrays.fill(x, 0);
+		System.arraycopy(rhs, 0, r, 0, size);
+		for (int c = 0; c < size; c++) {
+			z[c] = r[c] / (diagonal[c] + lambda);
+		}
+		System.arraycopy(z, 0, p, 0, size);
+		double rz = dot(r, z);
+		double stop = rz * TOLERANCE;
+
+		int iterations = Math.min(2 * size, maxIterations);
+		for (int iteration = 0; iteration < iterations && rz > stop; iteration++) {
+			multiply(p, q);
+			double pq = dot(p, q);
+			if (pq <= 0) {
+				break;
+			}
+			double alpha = rz / pq;
+			for (int c = 0; c < size; c++) {
+				x[c] += alpha * p[c];
+				r[c] -= alpha * q[c];
+			}
+			if (System.nanoTime() > deadline) {
+				break;
+			}
+
+			for (int c = 0; c < size; c++) {
+				z[c] = r[c] / (diagonal[c] + lambda);
+			}
+			double rzNext = dot(r, z);
+			double beta = rzNext / rz;
+			for (int c = 0; c < size; c++) {
+				p[c] = z[c] + beta * p[c];
+			}
+			rz = rzNext;
+		}
+	}
+
+	private double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int c = 0; c < size; c++) {
+			sum += a[c] * b[c];
+		}
+		return sum;
+	}
+
+	/**
+	 * Scales the parameters of each issue into evaluations in [0, 1] and
+	 * weighs the issues by the range of their parameters
+	 */
+	private void updateUtilitySpace() {
+		double[] ranges = new double[amountOfIssues];
+		double totalRange = 0;
+		for (int k = 0; k < amountOfIssues; k++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int v = 0; v < codec.getValueCount(k); v++) {
+				min = Math.min(min, x[offset[k] + v]);
+				max = Math.max(max, x[offset[k] + v]);
+			}
+			ranges[k] = (max > min) ? max - min : 0;
+			totalRange += ranges[k];
+
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) u.getEvaluator(codec.getIssue(k));
+			for (int v = 0; v < codec.getValueCount(k); v++) {
+				double evaluation = (ranges[k] > 0) ? (x[offset[k] + v] - min) / ranges[k] : 1;
+				evaluator.setEvaluationDouble(codec.getValue(k, v), evaluation);
+			}
+		}
+
+		// set on the evaluators, the utility space would renormalize all weights
+		for (int k = 0; k < amountOfIssues; k++) {
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) u.getEvaluator(codec.getIssue(k));
+			evaluator.setWeight((totalRange > 0) ? ranges[k] / totalRange : 1.0 / amountOfIssues);
+		}
+	}
+
+	/**
+	 * Returns the utility space that has been created.
+	 */
+	@Override
+	public AdditiveUtilitySpace getUtilitySpace() {
+		return u;
+	}
+
+	/**
+	 * @param ridge
+	 *            ridge term, relative to the average diagonal of the
+	 *            normal matrix
+	 */
+	public void setRidge(double ridge) {
+		this.ridge = ridge;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            number of iterations after which the solver stops
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+	
+	/**
+	 * @param timeBudget
+	 *            time after which the solver stops regardless, in milliseconds
+	 */
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+}
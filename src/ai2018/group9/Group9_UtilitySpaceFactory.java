@@ -1,18 +1,20 @@
 package ai2018.group9;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
+import ai2018.common.BidCodec;
 import genius.core.Bid;
 import genius.core.Domain;
 import genius.core.issue.Issue;
 import genius.core.issue.IssueDiscrete;
 import genius.core.issue.Objective;
-import genius.core.issue.Value;
 import genius.core.issue.ValueDiscrete;
 import genius.core.uncertainty.AdditiveUtilitySpaceFactory;
 import genius.core.uncertainty.BidRanking;
@@ -27,10 +29,27 @@ import genius.core.utility.EvaluatorDiscrete;
  * 
  * @author Group 9
  */
-public class Group9_UtilitySpaceFactory{
+public class Group9_UtilitySpaceFactory implements UtilitySpaceEstimator {
+	
+	/**
+	 * Default estimation parameters, same as in Group9_OM
+	 */
+	public static final double DEFAULT_LEARN_COEF = 0.2;
+	public static final int DEFAULT_LEARN_VALUE_ADDITION = 1;
+	
+	/**
+	 * Number of bids of the ranking below which a task
+	 * does not split its part of the ranking any further
+	 */
+	private static final int CHUNK_SIZE = 4096;
 	
 	private AdditiveUtilitySpace u;
 	
+	/**
+	 * encodes the bids of the ranking
+	 */
+	private BidCodec codec;
+	
 	/**
 	 * parameters to estimate utility space under uncertainty
 	 * @see Group9_OM
@@ -41,9 +60,49 @@ public class Group9_UtilitySpaceFactory{
 	private double goldenValue;
 	private int bidsToCheck;
 	
+	/**
+	 * whether the ranking is encoded and counted on the common fork-join pool
+	 */
+	private boolean parallel = true;
+	
+	/**
+	 * Number of steps between two stored weight vectors
+	 */
+	private static final int CHECKPOINT = 256;
+	
+	/*
+	 * State of the last estimate, kept to insert bids: the codes of the bids
+	 * by rank, the weights and evaluations it started from, how often each 
+	 * value is counted, which issues remain unchanged from each bid to the one
+	 * below it, the weights at every checkpoint from the best bid down, and
+	 * the final weights
+	 */
+	private List<int[]> codes;
+	private double[] baseWeights;
+	private int[][] baseCounts;
+	private double[][] baseEvaluations;
+	private long[][] occurrences;
+	private List<boolean[]> steps;
+	private List<double[]> checkpoints;
+	private double[] weights;
+	
 	public Group9_UtilitySpaceFactory(Domain domain) {
-		// Generates an simple Utility Space on the domain, with equal weights and zero values.
-		// Everything is zero-filled to already have all keys contained in the utility maps.
+		u = createUtilitySpace(domain);
+		codec = BidCodec.forDomain(domain);
+		
+		// Initiate utility space parameters
+		initUSParameters();
+	}
+	
+	
+	/**
+	 * Generates an simple Utility Space on the domain, with equal weights and zero values.
+	 * Everything is zero-filled to already have all keys contained in the utility maps.
+	 * 
+	 * @param domain
+	 * @return AdditiveUtilitySpace
+	 */
+	static AdditiveUtilitySpace createUtilitySpace(Domain domain) {
 		List<Issue> issues = domain.getIssues();
 		int noIssues = issues.size();
 		Map<Objective, Evaluator> evaluatorMap = new HashMap<Objective, Evaluator>();
@@ -56,14 +115,9 @@ public class Group9_UtilitySpaceFactory{
 			}
 			evaluatorMap.put(issue, evaluator);
 		}
-				
-		u = new AdditiveUtilitySpace(domain, evaluatorMap);
-		
-		// Initiate utility space parameters
-		initUSParameters();
+		return new AdditiveUtilitySpace(domain, evaluatorMap);
 	}
 	
-	
 	/**
 	 * Initialize parameters that are used to estimate utility space 
 	 * Default values refer to those in Group9_OM
@@ -71,8 +125,8 @@ public class Group9_UtilitySpaceFactory{
 	 * @param 
 	 */
 	private void initUSParameters() {
-		learnCoef = 0.2;
-		learnValueAddition = 1;
+		learnCoef = DEFAULT_LEARN_COEF;
+		learnValueAddition = DEFAULT_LEARN_VALUE_ADDITION;
 		amountOfIssues = u.getDomain().getIssues().size();
 		goldenValue = learnCoef / amountOfIssues;
 		bidsToCheck  = countMaxIssueValues(u);
@@ -101,47 +155,170 @@ public class Group9_UtilitySpaceFactory{
 	 * 
 	 * @param r
 	 */
+	@Override
 	public void estimateUsingBidRanks(BidRanking r) {
-		if (r.getSize() < bidsToCheck) {
-			simpleEstimateUsingBidRanks(r);
+		estimate(encodeRanking(r.getBidOrder()));
+		writeEstimate(u);
+	}
+	
+	/**
+	 * Inserts a bid into the ranking of the last estimate, for example after
+	 * it has been elicited, and returns the refreshed estimate. <br><br>
+	 * 
+	 * Only the steps from the new bid to its neighbours are computed, and
+	 * the weights are replayed over the stored steps from the last checkpoint
+	 * above the new bid. The returned utility space is a new snapshot that is
+	 * never modified afterwards, the ones returned before stay as they were.
+	 * 
+	 * @param bid
+	 * @param position
+	 *            rank of the bid in the new ranking, 0 being the lowest
+	 * @return AdditiveUtilitySpace
+	 * @throws IllegalStateException
+	 *             if nothing has been estimated yet
+	 */
+	public AdditiveUtilitySpace insertBid(Bid bid, int position) {
+		if (null == codes) {
+			throw new IllegalStateException("Estimate the utility space before inserting bids");
+		}
+		codes.add(position, codec.encode(bid));
+		int size = codes.size();
+		u = createUtilitySpace(u.getDomain());
+		
+		// Small rankings are estimated differently, estimate them again
+		if (size <= bidsToCheck) {
+			estimate(codes.toArray(new int[size][]));
+			writeEstimate(u);
+			return u;
+		}
+		
+		// The best bid is not counted, the one below it is
+		int last = Math.min(position, size - 2);
+		countValues(codes.get(last));
+		
+		// Add the step to the new bid and update the step from it
+		steps.add(last, new boolean[amountOfIssues]);
+		for (int i = Math.max(0, position - 1); i <= last; i++) {
+			computeStep(i);
+		}
+		replayWeights(size - 2 - last);
+		
+		writeEstimate(u);
+		return u;
+	}
+	
+	/**
+	 * Estimates the weights and value counts of an encoded ranking,
+	 * starting from the current utility space
+	 * 
+	 * @param ranking
+	 *            codes of the bids by rank
+	 */
+	private void estimate(int[][] ranking) {
+		if (ranking.length < bidsToCheck) {
+			simpleEstimate(ranking);
+		}
+		
+		// Read the current weights and value counts once, the pass
+		// below only updates copies of them
+		baseWeights = new double[amountOfIssues];
+		baseCounts = new int[amountOfIssues][];
+		baseEvaluations = new double[amountOfIssues][];
+		for (int k = 0; k < amountOfIssues; k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			EvaluatorDiscrete value = (EvaluatorDiscrete) u.getEvaluator(issue);
+			baseWeights[k] = u.getWeight(issue.getNumber());
+			baseCounts[k] = new int[codec.getValueCount(k)];
+			baseEvaluations[k] = new double[codec.getValueCount(k)];
+			for (int v = 0; v < baseCounts[k].length; v++) {
+				try {
+					baseCounts[k][v] = value.getEvaluationNotNormalized(codec.getValue(k, v));
+					baseEvaluations[k][v] = value.getDoubleValue(codec.getValue(k, v));
+				} catch (Exception ex) {
+					// no evaluation yet, the value has not been counted
+					baseCounts[k][v] = 0;
+					baseEvaluations[k][v] = 0;
+				}
+			}
+		}
+		
+		// For each issue value that has been offered in a bid but the best one, 
+		// a constant value is added to its corresponding ValueDiscrete.
+		// The values are counted up front, in parallel if enabled.
+		occurrences = sumValues(ranking, Math.max(0, ranking.length - 1), false);
+		
+		// From high-ranked bid to low-ranked bid, determine which issues 
+		// remain unchanged
+		codes = new ArrayList<int[]>(Arrays.asList(ranking));
+		steps = new ArrayList<boolean[]>(Math.max(0, ranking.length - 1));
+		for (int i = 0; i < ranking.length - 1; i++) {
+			steps.add(new boolean[amountOfIssues]);
+			computeStep(i);
+		}
+		
+		checkpoints = new ArrayList<double[]>();
+		replayWeights(0);
+	}
+	
+	/**
+	 * Determines which issues remain unchanged from the bid at rank i + 1
+	 * to the one at rank i
+	 * 
+	 * @param i
+	 */
+	private void computeStep(int i) {
+		boolean[] unchanged = steps.get(i);
+		int[] bidCode = codes.get(i);
+		int[] prevBidCode = codes.get(i + 1);
+		for (int k = 0; k < amountOfIssues; k++) {
+			unchanged[k] = (prevBidCode[k] == bidCode[k]);
+		}
+	}
+	
+	/**
+	 * Counts the values of a bid once more
+	 * 
+	 * @param bidCode
+	 */
+	private void countValues(int[] bidCode) {
+		for (int k = 0; k < amountOfIssues; k++) {
+			if (bidCode[k] >= 0) {
+				occurrences[k][bidCode[k]]++;
+			}
+		}
+	}
+	
+	/**
+	 * Re-weighs the issues over the steps from the best bid down, starting
+	 * at the last checkpoint at most the given number of steps below the best 
+	 * bid, and stores a checkpoint every CHECKPOINT steps. <br>
+	 * Issues that remain unchanged gain weight. The increment by the number
+	 * of distinct values in the last x bids that Group9_OM uses only applies
+	 * to issues that changed, where it is not added, so it is left out.
+	 * 
+	 * @param from
+	 *            number of steps below the best bid that are still valid
+	 */
+	private void replayWeights(int from) {
+		int checkpoint = Math.min(from / CHECKPOINT, checkpoints.size());
+		while (checkpoints.size() > checkpoint) {
+			checkpoints.remove(checkpoints.size() - 1);
 		}
+		weights = (0 == checkpoint) ? baseWeights.clone() 
+				: checkpoints.get(checkpoint - 1).clone();
 		
-		// From high-ranked bid to low-ranked bid,
-		// add weight to issues that remain unchanged
-		// and evaluate values
-		for (int i = r.getSize() - 2; i >= 0; --i) {
+		int count = steps.size();
+		int start = checkpoint * CHECKPOINT;
+		for (int d = start; d < count; d++) {
+			if (d > start && d % CHECKPOINT == 0) {
+				checkpoints.add(weights.clone());
+			}
+			boolean[] unchanged = steps.get(count - 1 - d);
 			
-			Bid bid = r.getBidOrder().get(i);
-			Bid prevBid = r.getBidOrder().get(i + 1);
-
 			int numberOfUnchanged = 0;
-			
-			HashMap<Integer, Integer> lastDiffSet = determineDifference(prevBid, bid);
-
-			// Get the last x bids the opponent made
-			Bid[] lastBids = getLastBids(i, bidsToCheck, r.getBidOrder());
-			
-			// Count how many distinct values have been bid for each issue in the last x bids
-			HashMap<Integer, Integer> distinctBidsPerIssue = CountValues(lastBids);
-			
-			// HashMap to calculate how much to increment each issue according to last x bids
-			HashMap<Integer, Double> addToIssue = new HashMap<Integer, Double>();
-			
-			//count # of changes in value
-			for (int j : lastDiffSet.keySet()) {
-				if (0 == lastDiffSet.get(j)) {
+			for (int k = 0; k < amountOfIssues; k++) {
+				if (unchanged[k]) {
 					numberOfUnchanged++;
-
-					// Issue unchanged, we don't want to increment more
-					addToIssue.put(j, 0.0);
-				} else {
-					try {
-						// Incremented by a value according to # of distinct bids in last x bids
-						addToIssue.put(j, 
-								(1.0 - (double)(distinctBidsPerIssue.get(j)) / amountOfIssues));
-					} catch (NullPointerException e) {
-						// Do nothing
-					}
 				}
 			}
 			
@@ -150,42 +327,51 @@ public class Group9_UtilitySpaceFactory{
 			// The maximum possible weight
 			double maximumWeight = 1D - (amountOfIssues) * goldenValue / totalSum;
 			
-			// Re-weighing issues while making sure that the sum remains 1
-			for (Integer k : lastDiffSet.keySet()) {
-				Objective issue = u.getDomain().getObjectivesRoot().getObjective(k);
-				double weight = u.getWeight(k);
-				double newWeight;
-
-				if (lastDiffSet.get(k) == 0 && weight < maximumWeight) {
-					newWeight = (weight + goldenValue 
-							+ goldenValue * addToIssue.get(k))
-							/ totalSum;
+			// Re-weighing issues. An unchanged issue that is already at the 
+			// maximum weight does not get goldenValue, so the sum can drop below 1
+			double weightSum = 0;
+			for (int k = 0; k < amountOfIssues; k++) {
+				if (unchanged[k] && weights[k] < maximumWeight) {
+					weights[k] = (weights[k] + goldenValue) / totalSum;
 				} else {
-					newWeight = weight / totalSum;
+					weights[k] = weights[k] / totalSum;
 				}
-				u.setWeight(issue, newWeight);
+				weightSum += weights[k];
 			}
 			
-			// Then for each issue value that has been offered last time, a constant
-			// value is added to its corresponding ValueDiscrete.
-			try {
-				for (Entry<Objective, Evaluator> e : u.getEvaluators()) {
-					EvaluatorDiscrete value = (EvaluatorDiscrete) e.getValue();
-					IssueDiscrete issue = ((IssueDiscrete) e.getKey());
+			// Make sure that the sum remains 1
+			for (int k = 0; k < amountOfIssues; k++) {
+				weights[k] /= weightSum;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the weights and value counts of the last estimate into a
+	 * utility space
+	 * 
+	 * @param target
+	 */
+	private void writeEstimate(AdditiveUtilitySpace target) {
+		for (int k = 0; k < amountOfIssues; k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			EvaluatorDiscrete value = (EvaluatorDiscrete) target.getEvaluator(issue);
+			// set on the evaluator, the utility space would renormalize all weights
+			value.setWeight(weights[k]);
+			
+			for (int v = 0; v < baseCounts[k].length; v++) {
+				if (occurrences[k][v] > 0) {
 					/*
 					 * add constant learnValueAddition to the current preference of
 					 * the value to make it more important
 					 */
-					ValueDiscrete issuevalue = (ValueDiscrete) bid.getValue(issue.getNumber());
-					Integer eval = value.getEvaluationNotNormalized(issuevalue);
-					value.setEvaluation(issuevalue, (learnValueAddition + eval));
+					value.setEvaluation(codec.getValue(k, v), 
+							baseCounts[k][v] + (int) (learnValueAddition * occurrences[k][v]));
+				} else {
+					value.setEvaluationDouble(codec.getValue(k, v), baseEvaluations[k][v]);
 				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
 			}
-			
-		} //end for loop of bid ranking
-		
+		}
 	}
 	
 	
@@ -198,18 +384,32 @@ public class Group9_UtilitySpaceFactory{
 	 */
 	public void simpleEstimateUsingBidRanks(BidRanking r)
 	{
-		double points = 0;
-		for (Bid b : r.getBidOrder())
+		simpleEstimate(encodeRanking(r.getBidOrder()));
+	}
+	
+	/**
+	 * Gives each value the sum of the ranks of the bids it occurs in,
+	 * which is what {@link #simpleEstimateUsingBidRanks(BidRanking)} does
+	 * one bid at a time
+	 * 
+	 * @param codes
+	 *            encoded bid ranking
+	 */
+	private void simpleEstimate(int[][] codes)
+	{
+		long[][] points = sumValues(codes, codes.length, true);
+		for (int k = 0; k < amountOfIssues; k++)
 		{
-			List<Issue> issues = b.getIssues();
-			for (Issue i : issues)
+			IssueDiscrete issue = codec.getIssue(k);
+			for (int v = 0; v < points[k].length; v++)
 			{
-				int no = i.getNumber();
-				ValueDiscrete v = (ValueDiscrete) b.getValue(no);
-				double oldUtil = getUtility(i, v);
-				setUtility(i, v, oldUtil + points);
+				if (points[k][v] > 0)
+				{
+					ValueDiscrete value = codec.getValue(k, v);
+					double oldUtil = getUtility(issue, value);
+					setUtility(issue, value, oldUtil + points[k][v]);
+				}
 			}
-			points += 1;
 		}
 		normalizeWeightsByMaxValues();
 	}
@@ -279,85 +479,135 @@ public class Group9_UtilitySpaceFactory{
 	}
 	
 	/**
-	 * Count number of distinct values per issue for each Bid
-	 * @param bids
-	 * @return
+	 * Encodes the bids of a ranking, in parallel if enabled
+	 * 
+	 * @param bidOrder
+	 * @return int[][] code of each bid, by rank
 	 */
-	private HashMap<Integer, Integer> CountValues(Bid[] bids) {
-
-		HashMap<Integer, Integer> count = new HashMap<Integer, Integer>();
-		try {	
-			for (Issue i : u.getDomain().getIssues()) {
-				Set<String> issueSet = new HashSet<String>();
-				for(int counter = 0; counter < bids.length; counter++) {
-					if (null != bids[counter]) {
-						Value val = bids[counter].getValue(i.getNumber());
-						issueSet.add(val.toString());
-					}
-				}
-				count.put(i.getNumber(), issueSet.size());
-			}
-		} catch (Exception ex) {
-			// Do nothing
+	private int[][] encodeRanking(List<Bid> bidOrder) {
+		int[][] codes = new int[bidOrder.size()][];
+		EncodeTask task = new EncodeTask(codec, bidOrder, codes, 0, codes.length);
+		if (parallel && codes.length > CHUNK_SIZE) {
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
 		}
-		
-		return count;
+		return codes;
 	}
-
+	
 	/**
-	 * Get last x bids before base in bid ranking
+	 * Sums, for each issue value, the weight of the first bids of an
+	 * encoded ranking it occurs in, in parallel if enabled. The sums are
+	 * exact, so the result does not depend on how the ranking is split.
 	 * 
-	 * @param x
-	 * @param allBids
-	 * @return Bid[]
+	 * @param codes
+	 *            encoded bid ranking
+	 * @param to
+	 *            number of bids to sum over
+	 * @param byRank
+	 *            weigh each bid by its rank instead of by 1
+	 * @return long[][] sum per issue and value ordinal
+	 */
+	private long[][] sumValues(int[][] codes, int to, boolean byRank) {
+		SumTask task = new SumTask(codec, codes, 0, to, byRank);
+		if (parallel && to > CHUNK_SIZE) {
+			return ForkJoinPool.commonPool().invoke(task);
+		}
+		return task.compute();
+	}
+	
+	/**
+	 * Encodes a part of a bid ranking
 	 */
-	private Bid[] getLastBids(int base, int x, List<Bid> allBids) {
-		int bidSize = allBids.size();
+	private static class EncodeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
 		
-		if(bidSize < x + 1) {
-			return new Bid[0];
+		private final BidCodec codec;
+		private final List<Bid> bidOrder;
+		private final int[][] codes;
+		private final int from;
+		private final int to;
+		
+		EncodeTask(BidCodec codec, List<Bid> bidOrder, int[][] codes, int from, int to) {
+			this.codec = codec;
+			this.bidOrder = bidOrder;
+			this.codes = codes;
+			this.from = from;
+			this.to = to;
 		}
-
-		Bid[] bids = new Bid[x];
-		for(int counter = 0; 
-				((counter < x) && (base + counter) <= (allBids.size() - 1)); 
-				counter++) {
-			Bid bid = allBids.get(base + counter);
-			bids[counter] = bid;
+		
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE) {
+				for (int i = from; i < to; i++) {
+					codes[i] = codec.encode(bidOrder.get(i));
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new EncodeTask(codec, bidOrder, codes, from, mid), 
+					new EncodeTask(codec, bidOrder, codes, mid, to));
 		}
-		return bids;
 	}
 	
-
 	/**
-	 * Determines the difference between bids. For each issue, it is determined
-	 * if the value changed. If this is the case, a 1 is stored in a hashmap for
-	 * that issue, else a 0.
-	 * 
-	 * @param first
-	 * @param second
-	 * @return HashMap<Integer, Integer>
+	 * Sums the values of a part of an encoded bid ranking into per-task
+	 * arrays, which are merged by adding them up
 	 */
-	private HashMap<Integer, Integer> determineDifference(Bid first,
-			Bid second) {
-
-		HashMap<Integer, Integer> diff = new HashMap<Integer, Integer>();
-		try {
-			for (Issue i : u.getDomain().getIssues()) {
-				Value value1 = first.getValue(i.getNumber());
-				Value value2 = second.getValue(i.getNumber());
-				diff.put(i.getNumber(), (value1.equals(value2)) ? 0 : 1);
+	private static class SumTask extends RecursiveTask<long[][]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final BidCodec codec;
+		private final int[][] codes;
+		private final int from;
+		private final int to;
+		private final boolean byRank;
+		
+		SumTask(BidCodec codec, int[][] codes, int from, int to, boolean byRank) {
+			this.codec = codec;
+			this.codes = codes;
+			this.from = from;
+			this.to = to;
+			this.byRank = byRank;
+		}
+		
+		@Override
+		protected long[][] compute() {
+			if (to - from <= CHUNK_SIZE) {
+				long[][] sums = new long[codec.getIssueCount()][];
+				for (int k = 0; k < sums.length; k++) {
+					sums[k] = new long[codec.getValueCount(k)];
+				}
+				for (int i = from; i < to; i++) {
+					for (int k = 0; k < sums.length; k++) {
+						if (codes[i][k] >= 0) {
+							sums[k][codes[i][k]] += byRank ? i : 1;
+						}
+					}
+				}
+				return sums;
+			}
+			int mid = (from + to) >>> 1;
+			SumTask left = new SumTask(codec, codes, from, mid, byRank);
+			SumTask right = new SumTask(codec, codes, mid, to, byRank);
+			left.fork();
+			long[][] sums = right.compute();
+			long[][] leftSums = left.join();
+			for (int k = 0; k < sums.length; k++) {
+				for (int v = 0; v < sums[k].length; v++) {
+					sums[k][v] += leftSums[k][v];
+				}
 			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
+			return sums;
 		}
-
-		return diff;
 	}
 	
 	/**
 	 * Returns the utility space that has been created.
 	 */
+	@Override
 	public AdditiveUtilitySpace getUtilitySpace() 
 	{
 		return u;
@@ -371,4 +621,14 @@ public class Group9_UtilitySpaceFactory{
 	public void setLearnValueAddition(int learnValueAddition) {
 		this.learnValueAddition = learnValueAddition;
 	}
+
+	/**
+	 * Sets whether large rankings are encoded and counted on the common
+	 * fork-join pool. The estimate is the same either way.
+	 * 
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
 }
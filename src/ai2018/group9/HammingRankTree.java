@@ -0,0 +1,169 @@
+package ai2018.group9;
+
+import java.util.List;
+
+import ai2018.common.BidCodec;
+import genius.core.Bid;
+import genius.core.Domain;
+import genius.core.uncertainty.BidRanking;
+
+/**
+ * Estimates the rank percentile of any bid from the ranked bids that are
+ * nearest to it in Hamming distance, the number of issues with a different
+ * value. <br><br>
+ *
+ * The ranked bids are kept in a BK-tree over their packed value ordinals,
+ * so a lookup only visits the subtrees that can hold a bid at the nearest
+ * distance found so far. The percentile is the average rank of all ranked
+ * bids at the nearest distance, which is the exact rank for a ranked bid.
+ * The tree reuses its search stack, so it must not be shared between
+ * threads.
+ *
+ * @author Group 9
+ */
+public class HammingRankTree {
+
+	private final int size;
+	private final BidCodec codec;
+
+	/**
+	 * nodes of the tree: packed code and rank of the bid, the Hamming 
+	 * distance to the parent, and the first child and next sibling
+	 */
+	private final long[] codes;
+	private final int[] ranks;
+	private final int[] distances;
+	private final int[] firstChild;
+	private final int[] nextSibling;
+	private int nodes;
+
+	private final int[] stack;
+
+	/**
+	 * @param ranking
+	 *            bids from low to high utility
+	 */
+	public HammingRankTree(BidRanking ranking) {
+		List<Bid> bidOrder = ranking.getBidOrder();
+		size = bidOrder.size();
+		codec = (size > 0) ? getCodec(bidOrder.get(0).getDomain()) : null;
+
+		int capacity = (null == codec) ? 0 : size;
+		codes = new long[capacity];
+		ranks = new int[capacity];
+		distances = new int[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		stack = new int[capacity];
+
+		for (int i = 0; i < capacity; i++) {
+			long index = codec.index(bidOrder.get(i));
+			if (index >= 0) {
+				insert(codec.pack(index), i);
+			}
+		}
+	}
+
+	/**
+	 * @param domain
+	 * @return codec of the domain, or null if its bids cannot be packed
+	 */
+	private static BidCodec getCodec(Domain domain) {
+		if (!BidCodec.isDiscrete(domain)) {
+			return null;
+		}
+		BidCodec codec = BidCodec.forDomain(domain);
+		return (codec.isIndexable() && codec.isPackable()) ? codec : null;
+	}
+
+	/**
+	 * Adds a bid to the tree, unless a bid with the same values is in it
+	 *
+	 * @param code
+	 * @param rank
+	 */
+	private void insert(long code, int rank) {
+		int node = nodes++;
+		codes[node] = code;
+		ranks[node] = rank;
+		firstChild[node] = -1;
+		nextSibling[node] = -1;
+		if (0 == node) {
+			return;
+		}
+
+		int parent = 0;
+		while (true) {
+			int distance = codec.hammingDistance(codes[parent], code);
+			if (0 == distance) {
+				// ranked before, keep the lowest rank
+				nodes--;
+				return;
+			}
+			int child = firstChild[parent];
+			while (-1 != child && distances[child] != distance) {
+				child = nextSibling[child];
+			}
+			if (-1 == child) {
+				distances[node] = distance;
+				nextSibling[node] = firstChild[parent];
+				firstChild[parent] = node;
+				return;
+			}
+			parent = child;
+		}
+	}
+
+	/**
+	 * Returns the average rank of the ranked bids nearest to a bid, divided
+	 * by the size of the ranking
+	 *
+	 * @param bid
+	 * @return double in [0, 1), or -1 if the bid cannot be compared
+	 */
+	public double getPercentile(Bid bid) {
+		if (0 == nodes) {
+			return -1;
+		}
+		long index = codec.index(bid);
+		if (index < 0) {
+			return -1;
+		}
+		long code = codec.pack(index);
+
+		int nearest = Integer.MAX_VALUE;
+		long rankSum = 0;
+		int count = 0;
+
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int distance = codec.hammingDistance(codes[node], code);
+			if (distance < nearest) {
+				nearest = distance;
+				rankSum = ranks[node];
+				count = 1;
+			} else if (distance == nearest) {
+				rankSum += ranks[node];
+				count++;
+			}
+
+			// by the triangle inequality, only children at a distance in 
+			// [distance - nearest, distance + nearest] can be as near
+			for (int child = firstChild[node]; -1 != child; child = nextSibling[child]) {
+				if (Math.abs(distances[child] - distance) <= nearest) {
+					stack[top++] = child;
+				}
+			}
+		}
+		return rankSum / (double) count / size;
+	}
+
+	/**
+	 * @return number of bids in the ranking
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,129 @@
+package ai2018.group9;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values in constant time and memory
+ * per value, with the P-square algorithm of Jain and Chlamtac. <br><br>
+ *
+ * Five markers track the minimum, the quantile, the maximum and the
+ * quantiles halfway in between. Each value moves the positions of the
+ * markers, and a marker that is off its desired position by at least one
+ * is adjusted with a piecewise-parabolic interpolation of its neighbours.
+ *
+ * @author Group 9
+ */
+public class P2Quantile {
+
+	private final double p;
+
+	/**
+	 * heights, positions, desired positions and their increments
+	 * of the markers
+	 */
+	private final double[] q = new double[5];
+	private final double[] n = new double[5];
+	private final double[] desired = new double[5];
+	private final double[] increment = new double[5];
+	private int count;
+
+	/**
+	 * @param p
+	 *            quantile to estimate, in [0, 1]
+	 */
+	public P2Quantile(double p) {
+		this.p = p;
+		increment[0] = 0;
+		increment[1] = p / 2;
+		increment[2] = p;
+		increment[3] = (1 + p) / 2;
+		increment[4] = 1;
+	}
+
+	/**
+	 * Adds a value to the stream
+	 *
+	 * @param x
+	 */
+	public void add(double x) {
+		if (count < 5) {
+			q[count++] = x;
+			if (5 == count) {
+				Arrays.sort(q);
+				for (int i = 0; i < 5; i++) {
+					n[i] = i + 1;
+				}
+				desired[0] = 1;
+				desired[1] = 1 + 2 * p;
+				desired[2] = 1 + 4 * p;
+				desired[3] = 3 + 2 * p;
+				desired[4] = 5;
+			}
+			return;
+		}
+		count++;
+
+		// find the cell of the value, extending the extremes if needed
+		int k;
+		if (x < q[0]) {
+			q[0] = x;
+			k = 0;
+		} else if (x >= q[4]) {
+			q[4] = Math.max(q[4], x);
+			k = 3;
+		} else {
+			k = 0;
+			while (x >= q[k + 1]) {
+				k++;
+			}
+		}
+
+		for (int i = k + 1; i < 5; i++) {
+			n[i]++;
+		}
+		for (int i = 0; i < 5; i++) {
+			desired[i] += increment[i];
+		}
+
+		// adjust the middle markers
+		for (int i = 1; i < 4; i++) {
+			double d = desired[i] - n[i];
+			if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+				int sign = (d > 0) ? 1 : -1;
+				double height = parabolic(i, sign);
+				if (q[i - 1] < height && height < q[i + 1]) {
+					q[i] = height;
+				} else {
+					q[i] = q[i] + sign * (q[i + sign] - q[i]) / (n[i + sign] - n[i]);
+				}
+				n[i] += sign;
+			}
+		}
+	}
+
+	private double parabolic(int i, int sign) {
+		return q[i] + sign / (n[i + 1] - n[i - 1])
+				* ((n[i] - n[i - 1] + sign) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+				+ (n[i + 1] - n[i] - sign) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return estimate of the quantile, or NaN if no value was added
+	 */
+	public double getQuantile() {
+		if (0 == count) {
+			return Double.NaN;
+		}
+		if (count < 5) {
+			// few values, take the quantile of the values themselves
+			double[] values = Arrays.copyOf(q, count);
+			Arrays.sort(values);
+			return values[(int) Math.min(count - 1, Math.floor(p * count))];
+		}
+		return q[2];
+	}
+}
@@ -0,0 +1,96 @@
+package ai2018.group9;
+
+import java.util.Map;
+
+import genius.core.bidding.BidDetails;
+import genius.core.boaframework.NegotiationSession;
+import genius.core.boaframework.OfferingStrategy;
+
+/**
+ * Offering strategy that searches the outcome space at most once per
+ * round. <br><br>
+ *
+ * In a round the agent asks the offering strategy for its next bid, and the
+ * acceptance strategy decides on the offer of the opponent. Acceptance
+ * conditions that compare that offer with our next bid, like AC_Next, may
+ * need the bid before or after the agent asked for it. Contract: the first
+ * call to {@link #determineNextBid()} or {@link #determineOpeningBid()} in a
+ * round runs the search, and every later call in the same round returns the
+ * same bid. A round ends when a bid is added to the own or the opponent bid
+ * history of the session the strategy was initialized with. Subclasses may
+ * replace negotiationSession, for instance with an estimated utility space
+ * under uncertainty, but the bid histories of such a copy do not grow.
+ *
+ * @author Group 9
+ */
+public abstract class PipelinedOfferingStrategy extends OfferingStrategy {
+
+	/**
+	 * the session the strategy was initialized with, whose bid histories
+	 * follow the negotiation
+	 */
+	private NegotiationSession roundSession;
+	
+	/**
+	 * size of the own and opponent bid history when the next bid was searched
+	 */
+	private int ownBids = -1;
+	private int opponentBids = -1;
+
+	@Override
+	public void init(NegotiationSession negoSession, Map<String, Double> parameters) throws Exception {
+		super.init(negoSession, parameters);
+		roundSession = negoSession;
+		ownBids = -1;
+		opponentBids = -1;
+	}
+
+	/**
+	 * Searches the opening bid, the next bid by default
+	 *
+	 * @return BidDetails
+	 */
+	protected BidDetails searchOpeningBid() {
+		return searchNextBid();
+	}
+
+	/**
+	 * Searches the bid to offer in this round
+	 *
+	 * @return BidDetails
+	 */
+	protected abstract BidDetails searchNextBid();
+
+	@Override
+	public final BidDetails determineOpeningBid() {
+		if (isNewRound()) {
+			nextBid = searchOpeningBid();
+		}
+		return nextBid;
+	}
+
+	@Override
+	public final BidDetails determineNextBid() {
+		if (isNewRound()) {
+			nextBid = searchNextBid();
+		}
+		return nextBid;
+	}
+
+	/**
+	 * Determines whether a bid was made since the last search, and if so
+	 * starts a new round
+	 *
+	 * @return true if the next bid has to be searched
+	 */
+	private boolean isNewRound() {
+		int own = roundSession.getOwnBidHistory().size();
+		int opponent = roundSession.getOpponentBidHistory().size();
+		if (null != nextBid && own == ownBids && opponent == opponentBids) {
+			return false;
+		}
+		ownBids = own;
+		opponentBids = opponent;
+		return true;
+	}
+}
@@ -0,0 +1,243 @@
+package ai2018.group9;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import ai2018.common.BidCodec;
+import genius.core.issue.IssueDiscrete;
+import genius.core.utility.AdditiveUtilitySpace;
+import genius.core.utility.EvaluatorDiscrete;
+
+/**
+ * Lazily generates the bids of an additive utility space whose utility lies in
+ * a band [lower, upper], without listing the outcome space. <br><br>
+ *
+ * The generator does a depth-first branch-and-bound over the issues: a partial
+ * bid is only extended if the best and worst completion of it can still end
+ * up in the band. Issues are visited by decreasing spread of their weighted
+ * evaluations and values by decreasing utility, so bids come out roughly from
+ * the top of the band down. Memory is linear in the size of the domain.
+ *
+ * @author Group 9
+ */
+public class UtilityBandGenerator {
+
+	/**
+	 * maximum number of search nodes visited per band, so that a band with
+	 * very few bids cannot stall a round
+	 */
+	private static final int MAX_NODES = 1000000;
+
+	private final BidCodec codec;
+	private final int amountOfIssues;
+
+	/**
+	 * issue of the codec visited at each depth of the search
+	 */
+	private final int[] issueAt;
+
+	/**
+	 * value ordinals and weighted evaluations of the issue at each depth,
+	 * sorted by decreasing utility
+	 */
+	private final int[][] ordinals;
+	private final double[][] utils;
+
+	/**
+	 * best and worst utility that the issues from a depth onwards can add
+	 */
+	private final double[] suffixMax;
+	private final double[] suffixMin;
+
+	/**
+	 * search state
+	 */
+	private final int[] pos;
+	private final double[] partial;
+	private int depth;
+	private int nodes;
+	private double lower;
+	private double upper;
+	private double utility;
+
+	/**
+	 * @param utilitySpace
+	 *            additive utility space over a discrete domain
+	 */
+	public UtilityBandGenerator(AdditiveUtilitySpace utilitySpace) {
+		codec = BidCodec.forDomain(utilitySpace.getDomain());
+		amountOfIssues = codec.getIssueCount();
+
+		// weighted evaluation of every value
+		final double[][] issueUtils = new double[amountOfIssues][];
+		final double[] spread = new double[amountOfIssues];
+		for (int k = 0; k < amountOfIssues; k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) utilitySpace.getEvaluator(issue);
+			double weight = utilitySpace.getWeight(issue.getNumber());
+
+			issueUtils[k] = new double[codec.getValueCount(k)];
+			double max = Double.NEGATIVE_INFINITY;
+			double min = Double.POSITIVE_INFINITY;
+			for (int v = 0; v < issueUtils[k].length; v++) {
+				try {
+					issueUtils[k][v] = weight * evaluator.getEvaluation(codec.getValue(k, v));
+				} catch (Exception e) {
+					// values without an evaluation add nothing
+					issueUtils[k][v] = 0;
+				}
+				max = Math.max(max, issueUtils[k][v]);
+				min = Math.min(min, issueUtils[k][v]);
+			}
+			spread[k] = max - min;
+		}
+
+		// visit the issues with the largest spread first to prune early
+		Integer[] order = new Integer[amountOfIssues];
+		for (int k = 0; k < amountOfIssues; k++) {
+			order[k] = k;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(spread[b], spread[a]);
+			}
+		});
+
+		issueAt = new int[amountOfIssues];
+		ordinals = new int[amountOfIssues][];
+		utils = new double[amountOfIssues][];
+		for (int d = 0; d < amountOfIssues; d++) {
+			final int k = order[d];
+			Integer[] values = new Integer[issueUtils[k].length];
+			for (int v = 0; v < values.length; v++) {
+				values[v] = v;
+			}
+			Arrays.sort(values, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(issueUtils[k][b], issueUtils[k][a]);
+				}
+			});
+
+			issueAt[d] = k;
+			ordinals[d] = new int[values.length];
+			utils[d] = new double[values.length];
+			for (int v = 0; v < values.length; v++) {
+				ordinals[d][v] = values[v];
+				utils[d][v] = issueUtils[k][values[v]];
+			}
+		}
+
+		suffixMax = new double[amountOfIssues + 1];
+		suffixMin = new double[amountOfIssues + 1];
+		for (int d = amountOfIssues - 1; d >= 0; d--) {
+			suffixMax[d] = suffixMax[d + 1] + utils[d][0];
+			suffixMin[d] = suffixMin[d + 1] + utils[d][utils[d].length - 1];
+		}
+
+		pos = new int[amountOfIssues];
+		partial = new double[amountOfIssues + 1];
+		depth = -1;
+	}
+
+	public BidCodec getCodec() {
+		return codec;
+	}
+
+	public double getMaxUtility() {
+		return suffixMax[0];
+	}
+
+	public double getMinUtility() {
+		return suffixMin[0];
+	}
+
+	/**
+	 * Writes the code of the bid with maximum utility into out
+	 *
+	 * @param out
+	 */
+	public void maxBid(int[] out) {
+		for (int d = 0; d < amountOfIssues; d++) {
+			out[issueAt[d]] = ordinals[d][0];
+		}
+	}
+
+	/**
+	 * Writes the code of the bid with minimum utility into out
+	 *
+	 * @param out
+	 */
+	public void minBid(int[] out) {
+		for (int d = 0; d < amountOfIssues; d++) {
+			out[issueAt[d]] = ordinals[d][ordinals[d].length - 1];
+		}
+	}
+
+	/**
+	 * Starts generating the bids with a utility in [lower, upper]
+	 *
+	 * @param lower
+	 * @param upper
+	 */
+	public void reset(double lower, double upper) {
+		this.lower = lower;
+		this.upper = upper;
+		nodes = 0;
+		depth = (amountOfIssues > 0) ? 0 : -1;
+		if (depth == 0) {
+			pos[0] = -1;
+			partial[0] = 0;
+		}
+	}
+
+	/**
+	 * Writes the code of the next bid in the band into out
+	 *
+	 * @param out
+	 *            array of at least {@link BidCodec#getIssueCount()} elements
+	 * @return false if there are no more bids in the band
+	 */
+	public boolean next(int[] out) {
+		while (depth >= 0) {
+			if (++nodes > MAX_NODES) {
+				depth = -1;
+				break;
+			}
+			if (++pos[depth] >= utils[depth].length) {
+				depth--;
+				continue;
+			}
+
+			double sum = partial[depth] + utils[depth][pos[depth]];
+			if (sum + suffixMax[depth + 1] < lower) {
+				// the remaining values of this issue are even worse
+				depth--;
+				continue;
+			}
+			if (sum + suffixMin[depth + 1] > upper) {
+				// try a worse value of this issue
+				continue;
+			}
+
+			if (depth == amountOfIssues - 1) {
+				for (int d = 0; d < amountOfIssues; d++) {
+					out[issueAt[d]] = ordinals[d][pos[d]];
+				}
+				utility = sum;
+				return true;
+			}
+			partial[++depth] = sum;
+			pos[depth] = -1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return utility of the last bid returned by {@link #next(int[])}
+	 */
+	public double getUtility() {
+		return utility;
+	}
+}
@@ -0,0 +1,229 @@
+package ai2018.group9;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import ai2018.common.BidCodec;
+import genius.core.Bid;
+import genius.core.Domain;
+import genius.core.issue.IssueDiscrete;
+import genius.core.uncertainty.BidRanking;
+import genius.core.utility.AdditiveUtilitySpace;
+import genius.core.utility.EvaluatorDiscrete;
+
+/**
+ * Content-addressed disk cache of estimated utility spaces, so that a domain
+ * and uncertainty profile that come back in a later session are loaded
+ * instead of estimated again. <br><br>
+ *
+ * An estimate is stored under the SHA-256 hash of the cache version, the
+ * domain structure, the bid ranking and the estimator parameters, as a
+ * binary file with the weight
+ * and the evaluations of each issue. Files are memory-mapped when loaded,
+ * and written to a temporary file first so that concurrent sessions never
+ * read a partial file. <br><br>
+ *
+ * The cache directory is set by the system property group9.cache.dir and
+ * defaults to group9-estimates in the temporary directory. An empty value
+ * turns the cache off.
+ *
+ * @author Group 9
+ */
+public class UtilitySpaceCache {
+
+	private static final String DIRECTORY_PROPERTY = "group9.cache.dir";
+
+	/**
+	 * first int of every cache file
+	 */
+	private static final int MAGIC = 0x47394553;
+	
+	/**
+	 * Version of the estimators and the file format, raise it whenever
+	 * either changes so that older estimates are no longer found
+	 */
+	private static final int VERSION = 2;
+
+	private UtilitySpaceCache() {
+	}
+
+	/**
+	 * Returns the file an estimate is stored in, or null if the cache is off
+	 *
+	 * @param ranking
+	 * @param parameters
+	 *            estimator and its parameters
+	 * @return File
+	 */
+	public static File getFile(BidRanking ranking, String parameters) {
+		String directory = System.getProperty(DIRECTORY_PROPERTY,
+				new File(System.getProperty("java.io.tmpdir"), "group9-estimates").getPath());
+		if (directory.isEmpty() || ranking.getSize() == 0) {
+			return null;
+		}
+		try {
+			return new File(directory, hash(ranking, parameters) + ".bin");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Loads an estimate into a new utility space
+	 *
+	 * @param file
+	 * @param domain
+	 * @return AdditiveUtilitySpace, or null if the file is missing or does
+	 *         not fit the domain
+	 */
+	public static AdditiveUtilitySpace load(File file, Domain domain) {
+		if (null == file || !file.isFile()) {
+			return null;
+		}
+		BidCodec codec = BidCodec.forDomain(domain);
+		AdditiveUtilitySpace u = Group9_UtilitySpaceFactory.createUtilitySpace(domain);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+					|| buffer.getInt() != codec.getIssueCount()) {
+				return null;
+			}
+
+			for (int k = 0; k < codec.getIssueCount(); k++) {
+				if (buffer.remaining() < 12) {
+					return null;
+				}
+				double weight = buffer.getDouble();
+				int valueCount = buffer.getInt();
+				if (valueCount != codec.getValueCount(k) || buffer.remaining() < 8 * valueCount) {
+					return null;
+				}
+
+				EvaluatorDiscrete evaluator = (EvaluatorDiscrete) u.getEvaluator(codec.getIssue(k));
+				for (int v = 0; v < valueCount; v++) {
+					evaluator.setEvaluationDouble(codec.getValue(k, v), buffer.getDouble());
+				}
+				// set on the evaluator, the utility space would renormalize all weights
+				evaluator.setWeight(weight);
+			}
+			return u;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores an estimate. Failing to store it only means that it will be
+	 * estimated again.
+	 *
+	 * @param file
+	 * @param u
+	 */
+	public static void store(File file, AdditiveUtilitySpace u) {
+		if (null == file) {
+			return;
+		}
+		BidCodec codec = BidCodec.forDomain(u.getDomain());
+
+		int length = 8;
+		for (int k = 0; k < codec.getIssueCount(); k++) {
+			length += 12 + 8 * codec.getValueCount(k);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(codec.getIssueCount());
+		for (int k = 0; k < codec.getIssueCount(); k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) u.getEvaluator(issue);
+			buffer.putDouble(u.getWeight(issue.getNumber()));
+			buffer.putInt(codec.getValueCount(k));
+			for (int v = 0; v < codec.getValueCount(k); v++) {
+				Double evaluation = evaluator.getDoubleValue(codec.getValue(k, v));
+				buffer.putDouble((null == evaluation) ? 0 : evaluation);
+			}
+		}
+
+		Path temp = null;
+		try {
+			Path target = file.toPath();
+			Files.createDirectories(target.getParent());
+			temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+			Files.write(temp, buffer.array());
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the cache directory is not writable, keep estimating
+			try {
+				if (null != temp) {
+					Files.deleteIfExists(temp);
+				}
+			} catch (IOException ignored) {
+				// nothing left to clean up
+			}
+		}
+	}
+
+	/**
+	 * Hashes the cache version, the structure of the domain, the bid ranking
+	 * and the parameters
+	 *
+	 * @param ranking
+	 * @param parameters
+	 * @return String of hex digits
+	 * @throws NoSuchAlgorithmException
+	 */
+	private static String hash(BidRanking ranking, String parameters) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		Domain domain = ranking.getBidOrder().get(0).getDomain();
+		BidCodec codec = BidCodec.forDomain(domain);
+		update(digest, "v" + VERSION + ";");
+
+		// the domain, the values of an issue in the order they are encoded in
+		for (int k = 0; k < codec.getIssueCount(); k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			update(digest, issue.getNumber() + ":" + issue.getName());
+			for (int v = 0; v < codec.getValueCount(k); v++) {
+				update(digest, "=" + codec.getValue(k, v).getValue());
+			}
+			update(digest, ";");
+		}
+
+		// the ranking, as the codes of its bids
+		ByteBuffer buffer = ByteBuffer.allocate(4 * codec.getIssueCount() + 16);
+		buffer.putDouble(ranking.getLowUtility());
+		buffer.putDouble(ranking.getHighUtility());
+		digest.update(buffer.array(), 0, buffer.position());
+		int[] code = new int[codec.getIssueCount()];
+		for (Bid bid : ranking.getBidOrder()) {
+			codec.encode(bid, code);
+			buffer.clear();
+			for (int k = 0; k < code.length; k++) {
+				buffer.putInt(code[k]);
+			}
+			digest.update(buffer.array(), 0, buffer.position());
+		}
+
+		update(digest, "|" + parameters);
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+	}
+}
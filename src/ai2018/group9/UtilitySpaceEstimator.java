@@ -0,0 +1,28 @@
+package ai2018.group9;
+
+import genius.core.uncertainty.BidRanking;
+import genius.core.utility.AdditiveUtilitySpace;
+
+/**
+ * Estimates an additive utility space from the bid ranking of an
+ * uncertainty profile.
+ *
+ * @author Group 9
+ */
+public interface UtilitySpaceEstimator {
+
+	/**
+	 * Estimates the utility space given bid ranking which contains
+	 * bids from low to high utility
+	 *
+	 * @param r
+	 */
+	void estimateUsingBidRanks(BidRanking r);
+
+	/**
+	 * Returns the utility space that has been created.
+	 *
+	 * @return AdditiveUtilitySpace
+	 */
+	AdditiveUtilitySpace getUtilitySpace();
+}
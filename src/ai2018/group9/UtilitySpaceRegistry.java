@@ -0,0 +1,186 @@
+package ai2018.group9;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import genius.core.boaframework.NegotiationSession;
+import genius.core.uncertainty.BidRanking;
+import genius.core.utility.AdditiveUtilitySpace;
+
+/**
+ * Estimates the utility space of a negotiation session under uncertainty
+ * once, and hands a copy of it to every BOA component of the session.
+ * <br><br>
+ *
+ * Estimates are kept per session, and within a session per bid ranking,
+ * estimator and estimation parameters, so components with different
+ * parameters do not share an estimate. The lock is only held to look up or
+ * add an estimate; it is computed outside of it, once, by the first
+ * component that asks, while the others wait for that estimate only.
+ * Every component gets its own copy, so none can change the estimate of
+ * another.
+ *
+ * @author Group 9
+ */
+public class UtilitySpaceRegistry {
+
+	/**
+	 * estimates of each session, released with the session
+	 */
+	private static final Map<NegotiationSession, Map<String, FutureTask<AdditiveUtilitySpace>>> ESTIMATES
+			= new WeakHashMap<NegotiationSession, Map<String, FutureTask<AdditiveUtilitySpace>>>();
+
+	private UtilitySpaceRegistry() {
+	}
+
+	/**
+	 * Returns the utility space estimated from the bid ranking of the user
+	 * model of a session, estimating it on first use
+	 *
+	 * @param negoSession
+	 *            session with a user model
+	 * @param learnCoef
+	 * @param learnValueAddition
+	 * @return AdditiveUtilitySpace, a copy of the estimate of the session
+	 * @see Group9_UtilitySpaceFactory
+	 */
+	public static AdditiveUtilitySpace getEstimate(final NegotiationSession negoSession,
+			final double learnCoef, final int learnValueAddition) {
+		BidRanking ranking = negoSession.getUserModel().getBidRanking();
+		final String parameters = "frequency:" + learnCoef + ":" + learnValueAddition;
+		String key = fingerprint(ranking) + ":" + parameters;
+
+		return getOrEstimate(negoSession, key, new Callable<AdditiveUtilitySpace>() {
+			@Override
+			public AdditiveUtilitySpace call() {
+				Group9_UtilitySpaceFactory factory = new Group9_UtilitySpaceFactory(negoSession.getDomain());
+				factory.setLearnCoef(learnCoef);
+				factory.setLearnValueAddition(learnValueAddition);
+				return estimate(negoSession, parameters, factory);
+			}
+		});
+	}
+
+	/**
+	 * Returns the utility space fitted to the bid ranking of the user
+	 * model of a session, estimating it on first use
+	 *
+	 * @param negoSession
+	 *            session with a user model
+	 * @return AdditiveUtilitySpace, a copy of the estimate of the session
+	 * @see Group9_RankRegressionFactory
+	 */
+	public static AdditiveUtilitySpace getRegressionEstimate(final NegotiationSession negoSession) {
+		BidRanking ranking = negoSession.getUserModel().getBidRanking();
+		final String parameters = "regression:" + Group9_RankRegressionFactory.DEFAULT_MAX_ITERATIONS;
+		String key = fingerprint(ranking) + ":" + parameters;
+
+		return getOrEstimate(negoSession, key, new Callable<AdditiveUtilitySpace>() {
+			@Override
+			public AdditiveUtilitySpace call() {
+				return estimate(negoSession, parameters,
+						new Group9_RankRegressionFactory(negoSession.getDomain()));
+			}
+		});
+	}
+
+	/**
+	 * Returns a copy of the estimate stored under a key, running the
+	 * estimation first if no component of the session did yet
+	 *
+	 * @param negoSession
+	 * @param key
+	 * @param estimation
+	 * @return AdditiveUtilitySpace
+	 */
+	private static AdditiveUtilitySpace getOrEstimate(NegotiationSession negoSession, String key,
+			Callable<AdditiveUtilitySpace> estimation) {
+		FutureTask<AdditiveUtilitySpace> task;
+		boolean owner = false;
+		synchronized (ESTIMATES) {
+			Map<String, FutureTask<AdditiveUtilitySpace>> estimates = ESTIMATES.get(negoSession);
+			if (null == estimates) {
+				estimates = new HashMap<String, FutureTask<AdditiveUtilitySpace>>();
+				ESTIMATES.put(negoSession, estimates);
+			}
+			task = estimates.get(key);
+			if (null == task) {
+				task = new FutureTask<AdditiveUtilitySpace>(estimation);
+				estimates.put(key, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			task.run();
+		}
+
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return new AdditiveUtilitySpace(task.get());
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			// let the next component try again
+			synchronized (ESTIMATES) {
+				Map<String, FutureTask<AdditiveUtilitySpace>> estimates = ESTIMATES.get(negoSession);
+				if (null != estimates && estimates.get(key) == task) {
+					estimates.remove(key);
+				}
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Loads the utility space of a session from the disk cache, or estimates
+	 * and caches it
+	 *
+	 * @param negoSession
+	 * @param parameters
+	 *            estimator and its parameters
+	 * @param estimator
+	 * @return AdditiveUtilitySpace
+	 * @see UtilitySpaceCache
+	 */
+	private static AdditiveUtilitySpace estimate(NegotiationSession negoSession,
+			String parameters, UtilitySpaceEstimator estimator) {
+		BidRanking ranking = negoSession.getUserModel().getBidRanking();
+		File file = UtilitySpaceCache.getFile(ranking, parameters);
+		AdditiveUtilitySpace u = UtilitySpaceCache.load(file, negoSession.getDomain());
+		if (null == u) {
+			estimator.estimateUsingBidRanks(ranking);
+			u = estimator.getUtilitySpace();
+			UtilitySpaceCache.store(file, u);
+		}
+		return u;
+	}
+
+	/**
+	 * Identifies a bid ranking
+	 *
+	 * @param ranking
+	 * @return String
+	 */
+	private static String fingerprint(BidRanking ranking) {
+		return ranking.getSize() + ":" + ranking.getBidOrder().hashCode();
+	}
+}
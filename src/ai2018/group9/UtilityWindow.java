@@ -0,0 +1,127 @@
+package ai2018.group9;
+
+/**
+ * Maximum and average of the utilities offered in a sliding time window,
+ * updated in amortized constant time per offer. <br><br>
+ *
+ * The offers in the window are kept in a ring buffer for the average, and
+ * a monotonic deque holds the offers that can still become the maximum:
+ * every offer in it has a higher utility than the offers after it. Both
+ * grow when the window holds more offers than before, and do not allocate
+ * afterwards.
+ *
+ * @author Group 9
+ */
+public class UtilityWindow {
+
+	private final double length;
+
+	/**
+	 * offers in the window, oldest first
+	 */
+	private double[] times = new double[16];
+	private double[] utils = new double[16];
+	private int head;
+	private int size;
+	private double sum;
+
+	/**
+	 * offers that can become the maximum, by decreasing utility
+	 */
+	private double[] maxTimes = new double[16];
+	private double[] maxUtils = new double[16];
+	private int maxHead;
+	private int maxSize;
+
+	/**
+	 * @param length
+	 *            length of the window in normalized time
+	 */
+	public UtilityWindow(double length) {
+		this.length = length;
+	}
+
+	/**
+	 * Adds an offer and drops the offers that fell out of the window
+	 *
+	 * @param time
+	 *            time of the offer, not before the previous one
+	 * @param util
+	 */
+	public void add(double time, double util) {
+		if (size == times.length) {
+			times = grow(times, head, size);
+			utils = grow(utils, head, size);
+			head = 0;
+		}
+		int tail = (head + size) % times.length;
+		times[tail] = time;
+		utils[tail] = util;
+		size++;
+		sum += util;
+
+		// offers that are not better than this one can no longer be the maximum
+		while (maxSize > 0 && maxUtils[(maxHead + maxSize - 1) % maxUtils.length] <= util) {
+			maxSize--;
+		}
+		if (maxSize == maxUtils.length) {
+			maxTimes = grow(maxTimes, maxHead, maxSize);
+			maxUtils = grow(maxUtils, maxHead, maxSize);
+			maxHead = 0;
+		}
+		int maxTail = (maxHead + maxSize) % maxUtils.length;
+		maxTimes[maxTail] = time;
+		maxUtils[maxTail] = util;
+		maxSize++;
+
+		expire(time);
+	}
+
+	/**
+	 * Drops the offers made before the window that ends at time
+	 *
+	 * @param time
+	 */
+	public void expire(double time) {
+		double start = time - length;
+		while (size > 0 && times[head] < start) {
+			sum -= utils[head];
+			head = (head + 1) % times.length;
+			size--;
+		}
+		while (maxSize > 0 && maxTimes[maxHead] < start) {
+			maxHead = (maxHead + 1) % maxTimes.length;
+			maxSize--;
+		}
+		if (0 == size) {
+			// no rounding errors left over
+			sum = 0;
+		}
+	}
+
+	private static double[] grow(double[] ring, int head, int size) {
+		double[] grown = new double[2 * ring.length];
+		for (int i = 0; i < size; i++) {
+			grown[i] = ring[(head + i) % ring.length];
+		}
+		return grown;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return highest utility in the window, or negative infinity if empty
+	 */
+	public double getMax() {
+		return (maxSize > 0) ? maxUtils[maxHead] : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * @return average utility in the window, or NaN if empty
+	 */
+	public double getAverage() {
+		return (size > 0) ? sum / size : Double.NaN;
+	}
+}
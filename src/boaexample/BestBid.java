@@ -6,6 +6,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import ai2018.common.BatchOpponentModel;
+import ai2018.common.SessionRandom;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
@@ -26,6 +28,16 @@ public class BestBid extends OMStrategy {
 	 */
 	double updateThreshold = 1.1;
 
+	/**
+	 * evaluations of the candidate bids, grown as needed
+	 */
+	private double[] evaluations = new double[0];
+
+	/**
+	 * picks a bid when the opponent model does not work
+	 */
+	private Random random;
+
 	/**
 	 * Initializes the opponent model strategy. If a value for the parameter t
 	 * is given, then it is set to this value. Otherwise, the default value is
@@ -47,6 +59,7 @@ public class BestBid extends OMStrategy {
 		} else {
 			System.out.println("OMStrategy assumed t = 1.1");
 		}
+		random = SessionRandom.forSession(negotiationSession, parameters);
 	}
 
 	/**
@@ -71,21 +84,24 @@ public class BestBid extends OMStrategy {
 		// to ensure that the opponent model works. If the opponent model
 		// does not work, offer a random bid.
 		boolean allWereZero = true;
-		// 3. Determine the best bid
-		for (BidDetails bid : allBids) {
-			double evaluation = model.getBidEvaluation(bid.getBid());
+		// 3. Determine the best bid, evaluating all bids in one batch
+		if (evaluations.length < allBids.size()) {
+			evaluations = new double[allBids.size()];
+		}
+		BatchOpponentModel.evaluateAll(model, allBids, evaluations);
+		for (int i = 0; i < allBids.size(); i++) {
+			double evaluation = evaluations[i];
 			if (evaluation > 0.0001) {
 				allWereZero = false;
 			}
 			if (evaluation > bestUtil) {
-				bestBid = bid;
+				bestBid = allBids.get(i);
 				bestUtil = evaluation;
 			}
 		}
 		// 4. The opponent model did not work, therefore, offer a random bid.
 		if (allWereZero) {
-			Random r = new Random();
-			return allBids.get(r.nextInt(allBids.size()));
+			return allBids.get(random.nextInt(allBids.size()));
 		}
 		return bestBid;
 	}
@@ -105,6 +121,8 @@ public class BestBid extends OMStrategy {
 	public Set<BOAparameter> getParameterSpec() {
 		Set<BOAparameter> set = new HashSet<BOAparameter>();
 		set.add(new BOAparameter("t", 1.1, "Time after which the OM should not be updated"));
+		set.add(new BOAparameter("seed", -1.0, "Seed of the session, negative for a new seed every session"));
+		set.add(new BOAparameter("rng", 0.0, "1 to record the seed and random draws of the session"));
 		return set;
 	}
 
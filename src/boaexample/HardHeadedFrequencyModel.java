@@ -6,11 +6,12 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import ai2018.common.BatchOpponentModel;
+import ai2018.common.BidCodec;
 import genius.core.Bid;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
-import genius.core.boaframework.OpponentModel;
 import genius.core.issue.Issue;
 import genius.core.issue.IssueDiscrete;
 import genius.core.issue.Objective;
@@ -27,7 +28,7 @@ import genius.core.utility.EvaluatorDiscrete;
  * 
  * paper: https://ii.tudelft.nl/sites/default/files/boa.pdf
  */
-public class HardHeadedFrequencyModel extends OpponentModel {
+public class HardHeadedFrequencyModel extends BatchOpponentModel {
 
 	/*
 	 * the learning coefficient is the weight that is added each turn to the
@@ -42,6 +43,12 @@ public class HardHeadedFrequencyModel extends OpponentModel {
 	private int learnValueAddition;
 	private int amountOfIssues;
 	private double goldenValue;
+	/*
+	 * weighted evaluations of the values per issue of the last codec, null
+	 * when the model changed since they were computed.
+	 */
+	private double[][] evaluations;
+	private BidCodec evaluationsCodec;
 
 	@Override
 	public void init(NegotiationSession negotiationSession,
@@ -62,6 +69,7 @@ public class HardHeadedFrequencyModel extends OpponentModel {
 		 * weight, (therefore defining the maximum possible also).
 		 */
 		goldenValue = learnCoef / amountOfIssues;
+		evaluations = null;
 
 		initializeModel();
 
@@ -72,6 +80,7 @@ public class HardHeadedFrequencyModel extends OpponentModel {
 		if (negotiationSession.getOpponentBidHistory().size() < 2) {
 			return;
 		}
+		evaluations = null;
 		int numberOfUnchanged = 0;
 		BidDetails oppBid = negotiationSession.getOpponentBidHistory()
 				.getHistory()
@@ -140,6 +149,60 @@ public class HardHeadedFrequencyModel extends OpponentModel {
 		return result;
 	}
 
+	/**
+	 * Evaluates encoded bids by looking up the weighted evaluation of their
+	 * values, which is computed once until the model is updated
+	 */
+	@Override
+	public void evaluateAll(BidCodec codec, long[] codes, int from, int to,
+			double[] out) {
+		int amountOfIssues = codec.getIssueCount();
+		if (null == evaluations || codec != evaluationsCodec) {
+			evaluations = buildEvaluations(codec);
+			evaluationsCodec = codec;
+		}
+		double[][] evaluations = this.evaluations;
+
+		for (int i = from; i < to; i++) {
+			long code = codes[i];
+			double result = 0;
+			for (int k = 0; k < amountOfIssues; k++) {
+				int values = evaluations[k].length;
+				result += evaluations[k][(int) (code % values)];
+				code /= values;
+			}
+			out[i - from] = result;
+		}
+	}
+
+	/**
+	 * Computes the weighted evaluation of every value of every issue
+	 * 
+	 * @param codec
+	 *            that numbers the issues and values
+	 * @return evaluations per issue, indexed by value
+	 */
+	private double[][] buildEvaluations(BidCodec codec) {
+		int amountOfIssues = codec.getIssueCount();
+		double[][] evaluations = new double[amountOfIssues][];
+		for (int k = 0; k < amountOfIssues; k++) {
+			IssueDiscrete issue = codec.getIssue(k);
+			EvaluatorDiscrete evaluator = (EvaluatorDiscrete) opponentUtilitySpace
+					.getEvaluator(issue);
+			double weight = opponentUtilitySpace.getWeight(issue.getNumber());
+			evaluations[k] = new double[codec.getValueCount(k)];
+			for (int v = 0; v < evaluations[k].length; v++) {
+				try {
+					evaluations[k][v] = weight
+							* evaluator.getEvaluation(codec.getValue(k, v));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return evaluations;
+	}
+
 	@Override
 	public String getName() {
 		return "HardHeaded Frequency Model";
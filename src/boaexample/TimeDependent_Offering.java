@@ -4,6 +4,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import ai2018.common.UtilityBucketIndex;
 import genius.core.bidding.BidDetails;
 import genius.core.boaframework.BOAparameter;
 import genius.core.boaframework.NegotiationSession;
@@ -39,6 +40,8 @@ public class TimeDependent_Offering extends OfferingStrategy {
 	private double e;
 	/** Outcome space */
 	private SortedOutcomeSpace outcomespace;
+	/** Index on the outcome space for utility range queries */
+	private UtilityBucketIndex index;
 
 	/**
 	 * Method which initializes the agent by setting all parameters. The
@@ -53,6 +56,7 @@ public class TimeDependent_Offering extends OfferingStrategy {
 
 			outcomespace = new SortedOutcomeSpace(negotiationSession.getUtilitySpace());
 			negotiationSession.setOutcomeSpace(outcomespace);
+			index = new UtilityBucketIndex(outcomespace);
 
 			this.e = parameters.get("e");
 
@@ -103,9 +107,9 @@ public class TimeDependent_Offering extends OfferingStrategy {
 
 		// if there is no opponent model available
 		if (opponentModel instanceof NoModel) {
-			nextBid = negotiationSession.getOutcomeSpace().getBidNearUtility(utilityGoal);
+			nextBid = index.getBidNearUtility(utilityGoal);
 		} else {
-			nextBid = omStrategy.getBid(outcomespace, utilityGoal);
+			nextBid = omStrategy.getBid(index.window(utilityGoal));
 		}
 		return nextBid;
 	}
@@ -35,7 +35,8 @@ public class Groupn extends AbstractNegotiationParty {
 
 		// with 50% chance, counter offer
 		// if we are the first party, also offer.
-		if (lastReceivedBid == null || !validActions.contains(Accept.class) || Math.random() > 0.5) {
+		// rand is seeded with the random seed of the session
+		if (lastReceivedBid == null || !validActions.contains(Accept.class) || rand.nextDouble() > 0.5) {
 			return new Offer(getPartyId(), generateRandomBid());
 		} else {
 			return new Accept(getPartyId(), lastReceivedBid);
@@ -2,6 +2,7 @@ package uncertaintyexample;
 
 import java.util.List;
 
+import ai2018.common.BidRankIndex;
 import genius.core.Bid;
 import genius.core.actions.Accept;
 import genius.core.actions.Action;
@@ -9,10 +10,17 @@ import genius.core.actions.Offer;
 import genius.core.parties.AbstractNegotiationParty;
 import genius.core.uncertainty.AdditiveUtilitySpaceFactory;
 import genius.core.uncertainty.ExperimentalUserModel;
+import genius.core.uncertainty.UserModel;
 import genius.core.utility.AbstractUtilitySpace;
 
 public class UncertaintyAgentExample extends AbstractNegotiationParty {
 
+	/**
+	 * Rank of each bid in the bid ranking of the user model it was built for
+	 */
+	private BidRankIndex rankIndex;
+	private UserModel rankedModel;
+
 	@Override
 	public Action chooseAction(List<Class<? extends Action>> possibleActions) {
 		log("This is the UncertaintyAgentExample.");
@@ -37,13 +45,16 @@ public class UncertaintyAgentExample extends AbstractNegotiationParty {
 		// in the user model
 		if (getLastReceivedAction() instanceof Offer) {
 			Bid receivedBid = ((Offer) getLastReceivedAction()).getBid();
-			List<Bid> bidOrder = userModel.getBidRanking().getBidOrder();
+			if (rankedModel != userModel) {
+				rankIndex = new BidRankIndex(userModel.getBidRanking());
+				rankedModel = userModel;
+			}
+			int rank = rankIndex.getRank(receivedBid);
 
 			// If the rank of the received bid is known
-			if (bidOrder.contains(receivedBid)) {
-				double percentile = (bidOrder.size()
-						- bidOrder.indexOf(receivedBid))
-						/ (double) bidOrder.size();
+			if (rank >= 0) {
+				double percentile = (rankIndex.size() - rank)
+						/ (double) rankIndex.size();
 				if (percentile < 0.1)
 					return new Accept(getPartyId(), receivedBid);
 			}